@@ -0,0 +1,28 @@
+package ctd.util.store;
+
+import java.util.List;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import ctd.util.store.listener.NodeListener;
+
+/**
+ * non-blocking counterparts of the {@link ActiveStore} operations,
+ * failures complete the future with a {@link StoreException}.
+ */
+public interface AsyncStore {
+	
+	ListenableFuture<Boolean> isPathExistAsync(String path,NodeListener listener);
+	
+	ListenableFuture<List<String>> getChildrenAsync(String path,NodeListener listener);
+	
+	ListenableFuture<byte[]> getDataAsync(String path,NodeListener listener);
+	
+	ListenableFuture<Boolean> setDataAsync(String path,byte[] data);
+	
+	ListenableFuture<String> createPathAsync(String path,byte[] data);
+	
+	ListenableFuture<String> createTempPathAsync(String path,byte[] data);
+	
+	ListenableFuture<Void> deleteAsync(String path);
+}
@@ -1,11 +1,19 @@
 package ctd.net.rpc;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import ctd.net.rpc.balance.Balance;
 import ctd.net.rpc.balance.BalanceFactory;
+import ctd.net.rpc.balance.SnapshotBalance;
+import ctd.net.rpc.compression.PayloadCompression;
 import ctd.net.rpc.desc.support.MethodDesc;
+import ctd.net.rpc.desc.support.ProviderSnapshot;
 import ctd.net.rpc.desc.support.ProviderUrl;
+import ctd.net.rpc.desc.support.RoutingRules;
 import ctd.net.rpc.desc.support.ServiceDesc;
 import ctd.net.rpc.exception.RemoteException;
 import ctd.net.rpc.exception.RpcException;
@@ -14,11 +22,14 @@ import ctd.net.rpc.registry.ServiceRegistry;
 import ctd.net.rpc.transport.exception.TransportException;
 import ctd.net.rpc.transport.factory.TransportFactory;
 import ctd.spring.AppDomainContext;
+import ctd.util.concurrent.VirtualThreads;
 import ctd.util.context.Context;
-import ctd.util.context.ContextUtils;
+import ctd.util.context.InvocationContext;
 
 public class Client {
 	private final static ServiceRegistry registry = AppDomainContext.getRegistry();
+	private final static boolean BYTE_BUFFER_PAYLOAD = Boolean.getBoolean("ctd.rpc.transport.byteBufferPayload");
+	private final static ExecutorService asyncExec = VirtualThreads.newCachedExecutor("ssdev-rpc-client-");
 	
 	private static Invocation createInvocation(String beanName,String methodName,Object[] parameters,Map<String,Object> headers,byte payloadType) throws RpcException{	
 		if(registry == null){
@@ -41,27 +52,54 @@ public class Client {
 		Invocation invocation = new Invocation();
 		invocation.setBeanName(beanName);
 		invocation.setMethodDesc(mc.desc());
-		invocation.setCompression(mc.getInboundCompression());
+		invocation.setCompression(PayloadCompression.select(mc.getInboundCompression(), mc, PayloadCompression.sizeOf(parameters)));
 		invocation.setTimeout(mc.getTimeout());
 		invocation.setParameters(parameters);
 		invocation.setHeaders(headers);
-		invocation.setHeader(Context.FROM_DOMAIN, AppDomainContext.getName());
+		String domain = AppDomainContext.getName();
+		if(!domain.equals(InvocationContext.fromDomainOf(headers))){
+			invocation.setHeader(Context.FROM_DOMAIN, domain);
+		}
 		return invocation;
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static byte[] rpcInvoke(String beanName,String methodName,byte[] bytes) throws Exception{
 		Object[] parameters = null;
 		if(bytes != null){
 			parameters = new Object[]{bytes};
 		}
 		
-		Map<String,Object> headers = null;
-		if(ContextUtils.hasKey(Context.RPC_INVOKE_HEADERS)){
-			headers = (Map<String, Object>) ContextUtils.get(Context.RPC_INVOKE_HEADERS);
+		Map<String,Object> headers = InvocationContext.currentHeaders();
+		Invocation invocation = createInvocation(beanName,methodName,parameters,headers,Payload.PAYLOAD_TYPE_JSON);
+		invocation.setPayloadType(Payload.PAYLOAD_TYPE_JSON);
+		return (byte[]) rpcInvoke(invocation,null);
+	}
+	
+	/**
+	 * pass-through for gateways,the remaining bytes of body are handed to the transport
+	 * as a slice and parsed by the provider straight from the received frame.
+	 * only transports declaring -Dctd.rpc.transport.byteBufferPayload=true can frame a ByteBuffer,
+	 * for the others the bytes are copied out and sent as the byte[] overload does.
+	 * the slice is never compressed,codecs only take byte[].
+	 */
+	public static byte[] rpcInvoke(String beanName,String methodName,ByteBuffer body) throws Exception{
+		if(!BYTE_BUFFER_PAYLOAD){
+			byte[] bytes = null;
+			if(body != null){
+				bytes = new byte[body.remaining()];
+				body.duplicate().get(bytes);
+			}
+			return rpcInvoke(beanName,methodName,bytes);
+		}
+		Object[] parameters = null;
+		if(body != null){
+			parameters = new Object[]{body.slice()};
 		}
+		
+		Map<String,Object> headers = InvocationContext.currentHeaders();
 		Invocation invocation = createInvocation(beanName,methodName,parameters,headers,Payload.PAYLOAD_TYPE_JSON);
 		invocation.setPayloadType(Payload.PAYLOAD_TYPE_JSON);
+		invocation.setCompression(PayloadCompression.NONE);
 		return (byte[]) rpcInvoke(invocation,null);
 	}
 	
@@ -77,14 +115,29 @@ public class Client {
 			log.setInvocation(invocation);
 			String beanName = invocation.getBeanName();
 			ServiceDesc sc = registry.find(beanName);
+			SnapshotBalance snapshotBalance = null;
 			if(balance == null){
-				balance = BalanceFactory.getBalance(sc.getProperty("balance", String.class)); 
+				String balanceName = sc.getProperty("balance", String.class);
+				snapshotBalance = SnapshotBalance.forName(balanceName,sc.getProperty("hashKey", String.class));
+				if(snapshotBalance == null || ProviderSnapshot.of(beanName) == null){
+					snapshotBalance = null;
+					balance = BalanceFactory.getBalance(balanceName); 
+				}
 			}
 			
 			int maxRetrys = sc.providerUrlsCount();
 			int retryCount = 0;
 			while(true){
-				ProviderUrl url = balance.select(sc.providerUrls());
+				ProviderUrl url = null;
+				if(snapshotBalance != null){
+					url = snapshotBalance.select(ProviderSnapshot.of(beanName),invocation);
+				}
+				else if(RoutingRules.of(beanName).hasDrained()){
+					url = balance.select(RoutingRules.of(beanName).withoutDrained(sc.providerUrls()));
+				}
+				else{
+					url = balance.select(sc.providerUrls());
+				}
 				if(url == null || maxRetrys == 0){
 					throw new RpcException(RpcException.SERVICE_OFFLINE,"service[" + beanName + "] is not available.");
 				}
@@ -103,6 +156,7 @@ public class Client {
 				catch(TransportException e){
 					if(e.isConnectFailed()){
 						url.setLastConnectFailed(true);
+						ProviderSnapshot.publish(sc);
 					}
 					else if(e.isTimeout()){
 						url.setLastTimeout(invocation.getTimeout() * 1000);
@@ -116,6 +170,11 @@ public class Client {
 					}
 					throw e;
 				}
+				finally{
+					if(snapshotBalance != null){
+						snapshotBalance.release(url);
+					}
+				}
 			} // while
 			
 		}
@@ -131,34 +190,74 @@ public class Client {
 		}
 	}
 	
+	/**
+	 * invoke on the given provider only,without balance and retry.
+	 */
+	public static Object rpcInvokeAt(ProviderUrl url,String beanName,String methodName,Object[] parameters,Map<String,Object> headers) throws Exception{
+		Invocation invocation = createInvocation(beanName,methodName,parameters,headers,Payload.PAYLOAD_TYPE_NATIVE);
+		InvokeLog log = new InvokeLog();
+		try{
+			log.begin();
+			log.setInvocation(invocation);
+			log.setUrl(url);
+			ctd.net.rpc.transport.Client client = TransportFactory.createClient(url.getUrl());
+			if(client == null){
+				throw new RpcException(RpcException.INVAILD_URL,"service[" + beanName + "]@url[" + url.getUrl() + "] is invaild.");
+			}
+			Result result = client.invoke(invocation);
+			log.setResult(result);
+			result.throwExpceptionIfHas();
+			return result.getValue();
+		}
+		catch(TransportException e){
+			if(e.isConnectFailed()){
+				url.setLastConnectFailed(true);
+			}
+			else if(e.isTimeout()){
+				url.setLastTimeout(invocation.getTimeout() * 1000);
+			}
+			throw e;
+		}
+		catch(RemoteException e){
+			throw (Exception)e.getCause();
+		}
+		catch(RpcException e){
+			log.setRpcException(e);
+			throw e;
+		}
+		finally{
+			log.finish();
+		}
+	}
+	
 	public static Object rpcInvoke(String beanName,String methodName,Object[] parameters,Map<String,Object> headers) throws Exception{
 		return rpcInvoke(beanName,methodName,parameters,headers,null);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static Object rpcInvoke(String beanName,String methodName,Object ...parameters) throws Exception{
-		Map<String,Object> headers = null;
-		if(ContextUtils.hasKey(Context.RPC_INVOKE_HEADERS)){
-			headers = (Map<String, Object>) ContextUtils.get(Context.RPC_INVOKE_HEADERS);
-		}
+		Map<String,Object> headers = InvocationContext.currentHeaders();
 		return rpcInvoke(beanName,methodName,parameters,headers);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static Object rpcInvoke(String beanName,String methodName,Balance balance,Object ...parameters) throws Exception{
-		Map<String,Object> headers = null;
-		if(ContextUtils.hasKey(Context.RPC_INVOKE_HEADERS)){
-			headers = (Map<String, Object>) ContextUtils.get(Context.RPC_INVOKE_HEADERS);
-		}
+		Map<String,Object> headers = InvocationContext.currentHeaders();
 		return rpcInvoke(beanName,methodName,parameters,headers,balance);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static Object rpcInvoke(String beanName,String methodName) throws Exception{
-		Map<String,Object> headers = null;
-		if(ContextUtils.hasKey(Context.RPC_INVOKE_HEADERS)){
-			headers = ContextUtils.get(Context.RPC_INVOKE_HEADERS,Map.class);
-		}
+		Map<String,Object> headers = InvocationContext.currentHeaders();
 		return rpcInvoke(beanName,methodName,null,headers,null);
 	}
+	
+	/**
+	 * runs the invocation on its own thread (virtual in virtual mode) with the invoke headers of the caller.
+	 */
+	public static Future<Object> rpcInvokeAsync(final String beanName,final String methodName,final Object ...parameters){
+		return asyncExec.submit(VirtualThreads.withContext(new Callable<Object>(){
+			@Override
+			public Object call() throws Exception {
+				return rpcInvoke(beanName,methodName,parameters);
+			}
+		}));
+	}
 }
@@ -0,0 +1,14 @@
+package ctd.net.rpc.compression;
+
+import java.io.IOException;
+
+public interface CompressionCodec {
+	
+	byte getId();
+	
+	String getName();
+	
+	byte[] compress(byte[] data,int offset,int length) throws IOException;
+	
+	byte[] decompress(byte[] data,int offset,int length) throws IOException;
+}
@@ -0,0 +1,172 @@
+package ctd.net.rpc.balance;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ctd.net.rpc.Invocation;
+import ctd.net.rpc.desc.support.ProviderSnapshot;
+import ctd.net.rpc.desc.support.ProviderUrl;
+
+/**
+ * rendezvous hashing with bounded load,a key sticks to its highest scoring provider
+ * unless that one holds more than LOAD_FACTOR times the average in-flight calls of the group.
+ * there is no ring to rebuild,a membership change only moves the keys of the providers that came or went.
+ * key is "arg:index" (default arg:0) or "header:name",invocations without a key are spread randomly.
+ * a malformed key is reported once and the service falls back to random.
+ */
+public class ConsistentHashSnapshotBalance extends SnapshotBalance {
+	private static final Logger logger = LoggerFactory.getLogger(ConsistentHashSnapshotBalance.class);
+	private static final double LOAD_FACTOR = 1.25;
+	private static final ConcurrentHashMap<String, SnapshotBalance> balances = new ConcurrentHashMap<>();
+	private static final LoadingCache<ProviderUrl, AtomicInteger> loads = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build(new CacheLoader<ProviderUrl, AtomicInteger>(){
+				@Override
+				public AtomicInteger load(ProviderUrl url) {
+					return new AtomicInteger();
+				}
+			});
+	
+	private final int argIndex;
+	private final String header;
+	
+	private ConsistentHashSnapshotBalance(int argIndex,String header){
+		this.argIndex = argIndex;
+		this.header = header;
+	}
+	
+	/**
+	 * parsed once per key,the result (random for a malformed key) is cached.
+	 */
+	public static SnapshotBalance forKey(String key){
+		if(key == null){
+			key = "arg:0";
+		}
+		SnapshotBalance balance = balances.get(key);
+		if(balance == null){
+			balance = parse(key);
+			SnapshotBalance old = balances.putIfAbsent(key, balance);
+			if(old != null){
+				balance = old;
+			}
+			else if(balance == random){
+				logger.warn("hash key[{}] is invaild,arg:index or header:name expected,fall back to random.",key);
+			}
+		}
+		return balance;
+	}
+	
+	private static SnapshotBalance parse(String key){
+		if(key.startsWith("header:") && key.length() > 7){
+			return new ConsistentHashSnapshotBalance(-1,key.substring(7));
+		}
+		if(key.startsWith("arg:")){
+			try{
+				int argIndex = Integer.parseInt(key.substring(4));
+				if(argIndex >= 0){
+					return new ConsistentHashSnapshotBalance(argIndex,null);
+				}
+			}
+			catch(NumberFormatException e){
+				
+			}
+		}
+		return random;
+	}
+	
+	@Override
+	public ProviderUrl select(ProviderSnapshot snapshot,Invocation invocation){
+		if(snapshot == null || snapshot.isEmpty()){
+			return null;
+		}
+		ProviderSnapshot.Group group = snapshot.route(invocation.getHeaders());
+		Object key = keyOf(invocation);
+		ProviderUrl selected;
+		if(key == null){
+			selected = group.at(random.index(group.weight()));
+		}
+		else{
+			selected = select(group,hash(key));
+		}
+		loads.getUnchecked(selected).incrementAndGet();
+		return selected;
+	}
+	
+	@Override
+	public void release(ProviderUrl url){
+		AtomicInteger load = loads.getIfPresent(url);
+		if(load != null){
+			load.decrementAndGet();
+		}
+	}
+	
+	private ProviderUrl select(ProviderSnapshot.Group group,long keyHash){
+		int size = group.size();
+		long total = 0;
+		for(int i = 0; i < size; i ++){
+			total += loads.getUnchecked(group.get(i)).get();
+		}
+		long maxLoad = (long)Math.ceil((total + 1) * LOAD_FACTOR / size);
+		
+		ProviderUrl best = null;
+		long bestScore = 0;
+		ProviderUrl fallback = null;
+		long fallbackScore = 0;
+		for(int i = 0; i < size; i ++){
+			ProviderUrl url = group.get(i);
+			long score = mix(keyHash ^ url.getUrl().hashCode());
+			if(fallback == null || score > fallbackScore){
+				fallback = url;
+				fallbackScore = score;
+			}
+			if(loads.getUnchecked(url).get() < maxLoad && (best == null || score > bestScore)){
+				best = url;
+				bestScore = score;
+			}
+		}
+		return best == null ? fallback : best;
+	}
+	
+	private Object keyOf(Invocation invocation){
+		if(header != null){
+			return invocation.getHeaders() == null ? null : invocation.getHeaders().get(header);
+		}
+		Object[] parameters = invocation.getParameters();
+		if(parameters == null || argIndex >= parameters.length){
+			return null;
+		}
+		return parameters[argIndex];
+	}
+	
+	private static long hash(Object key){
+		if(key instanceof byte[]){
+			return mix(Arrays.hashCode((byte[])key));
+		}
+		return mix(key.hashCode());
+	}
+	
+	/**
+	 * murmur3 fmix64.
+	 */
+	private static long mix(long h){
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	protected int index(int size) {
+		return random.index(size);
+	}
+}
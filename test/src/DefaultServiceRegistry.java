@@ -1,14 +1,35 @@
 package ctd.net.rpc.registry.support;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -17,71 +38,241 @@ import org.slf4j.LoggerFactory;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ListenableFuture;
 
+import ctd.net.rpc.desc.support.ProviderSnapshot;
 import ctd.net.rpc.desc.support.ProviderUrl;
+import ctd.net.rpc.desc.support.ProviderZones;
+import ctd.net.rpc.desc.support.RoutingRules;
 import ctd.net.rpc.desc.support.ServiceDesc;
 import ctd.net.rpc.exception.RpcException;
 import ctd.net.rpc.registry.exception.RegistryException;
+import ctd.net.rpc.server.Dispatcher;
 import ctd.net.rpc.transport.ServerUrl;
 import ctd.spring.AppDomainContext;
 import ctd.util.acl.ACListType;
+import ctd.util.concurrent.VirtualThreads;
 import ctd.util.store.ActiveStore;
+import ctd.util.store.AsyncStore;
 import ctd.util.store.StoreConstants;
 import ctd.util.store.StoreException;
+import ctd.util.store.StoreTransaction;
+import ctd.util.store.TransactionalStore;
+import ctd.util.store.VersionedData;
+import ctd.util.store.VersionedStore;
 import ctd.util.store.listener.NodeListener;
 import ctd.util.store.listener.StateListener;
+import ctd.util.store.support.RetryBackoff;
 
 public class DefaultServiceRegistry extends AbstractServiceRegistry implements StateListener,Runnable {
 	private static final Logger logger = LoggerFactory.getLogger(DefaultServiceRegistry.class);
 	private static final int PUBLISH_CHECK_DELAY = 5;
+	private static final int PUBLISH_BATCH_MILLIS = 20;
+	private static final int FAILED_URL_CHECK_DELAY_MILLIS = 1000;
+	private static final int FAILED_URL_CHECK_TIMEOUT_MILLIS = 3000;
+	private static final int PROBE_TIMEOUT_MILLIS = 500;
+	private static final int PROBE_THREADS = 4;
+	private static final int PROBE_QUEUE_SIZE = 256;
 	private static final int RETRY_DELAY = 5;
 	private static final int REMOVE_SERVICE_EXPIRE_MINUTES = 60;
+	private static final long MAX_SERVICE_STORE_BYTES = Long.getLong("ctd.rpc.registry.maxServiceStoreBytes", 64L * 1024 * 1024);
+	private static final int SERVICE_STORE_CONCURRENCY = 16;
+	private static final int SERVICE_BASE_COST = 512;
+	private static final int PROVIDER_URL_COST = 256;
+	private static final int WATCH_COST = 256;
+	private static final int REWEIGH_MIN_URLS = 16;
 	private static final int STATIC_URL_CONNECT_RETRY_DELAY = 30;
+	private static final int MAX_TRANSACTION_OPS = 256;
+	private static final int WATCH_RETRY_BASE_MILLIS = 500;
+	private static final int LOADER_THREADS = 8;
+	private static final int REVALIDATE_TIMEOUT_SECONDS = 30;
+	private static final int DEPLOY_TIMEOUT_SECONDS = 30;
+	private static final int WATCH_RETRY_DEADLINE_MINUTES = 5;
 	private static final String CHARSET = "UTF-8";
+	private static final String SERVICE_ROUTING = "routing";
+	private static final long DRAIN_PROPAGATION_MILLIS = Long.getLong("ctd.rpc.drain.propagationMillis", 2000);
+	private static final long DRAIN_TIMEOUT_MILLIS = Long.getLong("ctd.rpc.drain.timeoutMillis", 30000);
 	private static final ConcurrentLinkedQueue<ServiceDesc> uploadQueue = new ConcurrentLinkedQueue<ServiceDesc>();
-	private static final CopyOnWriteArraySet<ProviderUrl> lastConnectFailedUrls = new CopyOnWriteArraySet<>();
+	private static final ConcurrentHashMap<ProviderUrl, Long> lastConnectFailedUrls = new ConcurrentHashMap<>();
 	
 	
 	private final ConcurrentHashMap<String, ProviderUrlListener> providerUrlListeners = new ConcurrentHashMap<>();
 	private final CopyOnWriteArraySet<ServiceDesc> deployedSet = new CopyOnWriteArraySet<ServiceDesc>();
+	private final ConcurrentHashMap<String, Integer> serviceVersions = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Integer> weighedProviders = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, SnapshotReload> snapshotServices = new ConcurrentHashMap<>();
+	private final RetryBackoff snapshotReloadBackoff = new RetryBackoff(TimeUnit.SECONDS.toMillis(RETRY_DELAY), 
+			TimeUnit.MINUTES.toMillis(WATCH_RETRY_DEADLINE_MINUTES), Long.MAX_VALUE);
+	private final Semaphore publishSignal = new Semaphore(0);
+	private final ConcurrentHashMap<String, ActiveStore> zoneStores = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, List<String>>> zoneProviderUrls = new ConcurrentHashMap<>();
+	private final WatchManager watchManager = new WatchManager(new RetryBackoff(WATCH_RETRY_BASE_MILLIS, 
+			TimeUnit.SECONDS.toMillis(RETRY_DELAY), TimeUnit.MINUTES.toMillis(WATCH_RETRY_DEADLINE_MINUTES)));
 	
 	private Thread t;
 	private ActiveStore store;
 	private String domainServiceRoot;
+	private RegistrySnapshot snapshot;
+	private List<String> prefetchServices = Collections.emptyList();
+	private List<String> prefetchDomains = Collections.emptyList();
+	private volatile CountDownLatch readyLatch = new CountDownLatch(1);
+	private ExecutorService loaderExec;
+	private ExecutorService probeExec;
+	private final Set<ProviderUrl> probingUrls = Collections.newSetFromMap(new ConcurrentHashMap<ProviderUrl, Boolean>());
+	private boolean activeProbe;
+	private boolean binaryDescFormat;
 	
 	protected LoadingCache<String, ServiceDesc> perpareServiceStore(){
 		return CacheBuilder.newBuilder()
+				.concurrencyLevel(SERVICE_STORE_CONCURRENCY)
+				.maximumWeight(MAX_SERVICE_STORE_BYTES)
+				.weigher(new Weigher<String,ServiceDesc>() {
+					@Override
+					public int weigh(String beanName, ServiceDesc service) {
+						weighedProviders.put(beanName, service.providerUrls().size());
+						return (int)Math.min(Integer.MAX_VALUE, memoryCost(beanName,service));
+					}
+				})
 				.expireAfterAccess(REMOVE_SERVICE_EXPIRE_MINUTES, TimeUnit.MINUTES)
 				.removalListener(new RemovalListener<String,ServiceDesc>() {
 					@Override
 					public void onRemoval(RemovalNotification<String, ServiceDesc> notification) {
-						logger.info("service[{}] expired,removed from serviceStore.",notification.getKey());
+						if(notification.getCause() == RemovalCause.REPLACED){
+							return;
+						}
+						String beanName = notification.getKey();
+						releaseService(beanName);
+						logger.info("service[{}] {},removed from serviceStore.",beanName,notification.getCause());
 					}
 				})
 				.build(new CacheLoader<String,ServiceDesc>(){
 					@Override
 					public ServiceDesc load(String beanName) throws Exception {
+						if(VirtualThreads.isVirtual(Thread.currentThread())){
+							return loadOnPlatform(beanName);
+						}
 						return loadFromStore(beanName);
 					}
 				});
 	}
 	
+	/**
+	 * drops everything installed for a cached service,its store watches fire at most once more
+	 * and are not armed again.
+	 */
+	private void releaseService(String beanName){
+		String path = servicePath(beanName);
+		String providerUrlsRoot = buildPathStr(path , "/" , StoreConstants.SERVICE_PROVIDERS);
+		watchManager.unwatch("service:" + path);
+		releaseProviderUrlsWatch(providerUrlsWatchKey(null,providerUrlsRoot));
+		for(String zone : zoneStores.keySet()){
+			releaseProviderUrlsWatch(providerUrlsWatchKey(zone,providerUrlsRoot));
+		}
+		watchManager.unwatch("routing:" + beanName);
+		zoneProviderUrls.remove(beanName);
+		ProviderZones.untag(beanName);
+		RoutingRules.remove(beanName);
+		ProviderSnapshot.remove(beanName);
+		serviceVersions.remove(beanName);
+		weighedProviders.remove(beanName);
+		snapshotServices.remove(beanName);
+	}
 	
-	private ServiceDesc loadFromStore(String beanName) throws RegistryException{
+	private void releaseProviderUrlsWatch(String key){
+		ProviderUrlListener lis = providerUrlListeners.remove(key);
+		if(lis != null){
+			lis.setDisabled(true);
+		}
+		watchManager.unwatch(key);
+	}
+	
+	private static long memoryCost(String beanName,ServiceDesc service){
+		long cost = SERVICE_BASE_COST + 2L * (beanName.length() + service.desc().length()) + 3 * WATCH_COST;
+		for(ProviderUrl url : service.providerUrls()){
+			cost += PROVIDER_URL_COST + 2L * url.getUrl().length();
+		}
+		return cost;
+	}
+	
+	/**
+	 * estimated heap bytes held for a cached service,0 when not cached.
+	 */
+	public long getServiceMemoryCost(String beanName){
+		ServiceDesc service = serviceStore.getIfPresent(beanName);
+		if(service == null){
+			return 0;
+		}
+		return memoryCost(beanName,service);
+	}
+	
+	public long getServiceStoreMemoryCost(){
+		long total = 0;
+		for(Map.Entry<String, ServiceDesc> e : serviceStore.asMap().entrySet()){
+			total += memoryCost(e.getKey(),e.getValue());
+		}
+		return total;
+	}
+	
+	private String servicePath(String beanName){
 		String domain = StringUtils.substringBefore(beanName, ".");
-		String path = buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain , "/" , beanName);
+		return buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain , "/" , beanName);
+	}
+	
+	/**
+	 * the store's sync api waits inside synchronized blocks,which pins the carrier of a virtual thread,
+	 * so a find from a virtual thread waits for the load done on a loader thread.
+	 */
+	private ServiceDesc loadOnPlatform(final String beanName) throws RegistryException{
+		Future<ServiceDesc> future = loaderExecutor().submit(new Callable<ServiceDesc>(){
+			@Override
+			public ServiceDesc call() throws Exception {
+				return loadFromStore(beanName);
+			}
+		});
+		try{
+			return future.get();
+		}
+		catch(InterruptedException e){
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RegistryException(RpcException.UNKNOWN, "beanName[" + beanName + "] load from registry interrupted.",e);
+		}
+		catch(ExecutionException e){
+			if(e.getCause() instanceof RegistryException){
+				throw (RegistryException)e.getCause();
+			}
+			throw new RegistryException(RpcException.UNKNOWN, "beanName[" + beanName + "] load from registry failed.",e.getCause());
+		}
+	}
+	
+	private ServiceDesc loadFromStore(String beanName) throws RegistryException{
+		String path = servicePath(beanName);
 		try {
-			byte[] data = store.getData(path);
-			ServiceDesc s = ServiceDesc.parse(new String(data,CHARSET));
+			byte[] data = null;
+			if(store instanceof VersionedStore){
+				VersionedData vd = ((VersionedStore)store).getVersionedData(path);
+				serviceVersions.put(beanName, vd.getVersion());
+				data = vd.getData();
+			}
+			else{
+				data = store.getData(path);
+			}
+			ServiceDesc s = ServiceDesc.parse(ServiceDescCodec.decode(data));
 			String providerUrlsRoot = buildPathStr(path , "/" , StoreConstants.SERVICE_PROVIDERS);
 			
+			zoneProviderUrls.remove(beanName);
 			List<String> ls = store.getChildren(providerUrlsRoot);
-			updateServiceProvoders(s,ls);
+			updateZoneProviders(s,null,ls);
+			saveSnapshot(s);
 			
-			startProviderUrlsWatch(beanName,providerUrlsRoot);
+			startProviderUrlsWatch(beanName,providerUrlsRoot,null,store);
+			loadZoneProviders(s,providerUrlsRoot);
 			startServiceRegistryWatch(beanName,path);
+			startWatchRouting(beanName,path);
 			return s;
 		} 
 		catch (StoreException e) {
@@ -90,7 +281,7 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 			}
 			throw new RegistryException(RpcException.UNKNOWN, "beanName[" + beanName + "] load from registry failed.",e);
 		} 
-		catch (UnsupportedEncodingException e) {
+		catch (IOException e) {
 			throw new RegistryException(RpcException.UNKNOWN, "beanName[" + beanName + "] load from registry failed.",e);
 		}
 			
@@ -99,6 +290,24 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 	@Override
 	public void deploy(ServiceDesc service) throws RegistryException{
 		uploadQueue.add(service);
+		signalPublish();
+	}
+	
+	/**
+	 * wakes the registry thread to publish services and check failed urls now.
+	 */
+	private void signalPublish(){
+		if(publishSignal.availablePermits() == 0){
+			publishSignal.release();
+		}
+	}
+	
+	private void awaitPublishSignal() throws InterruptedException{
+		long delay = lastConnectFailedUrls.isEmpty() ? TimeUnit.SECONDS.toMillis(PUBLISH_CHECK_DELAY) : FAILED_URL_CHECK_DELAY_MILLIS;
+		if(publishSignal.tryAcquire(delay, TimeUnit.MILLISECONDS)){
+			TimeUnit.MILLISECONDS.sleep(PUBLISH_BATCH_MILLIS);
+		}
+		publishSignal.drainPermits();
 	}
 	
 
@@ -110,16 +319,212 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 				public void run() {
 					url.setLastConnectFailed(false);
 					lastConnectFailedUrls.remove(url);
+					ServiceDesc service = serviceStore.getIfPresent(url.getBeanName());
+					if(service != null){
+						ProviderSnapshot.publish(service);
+					}
 				}
 			}, STATIC_URL_CONNECT_RETRY_DELAY, TimeUnit.SECONDS);
 		}
 		else{
-			lastConnectFailedUrls.add(url);
+			lastConnectFailedUrls.put(url, System.nanoTime());
+			signalPublish();
+		}
+	}
+	
+	private ServiceDesc loadFromSnapshot(String beanName){
+		RegistrySnapshot.Entry entry = snapshot.load(beanName);
+		if(entry == null){
+			return null;
+		}
+		ServiceDesc s = ServiceDesc.parse(entry.getDesc());
+		updateServiceProvoders(s,entry.getProviderUrls());
+		serviceStore.put(beanName, s);
+		snapshotServices.put(beanName, new SnapshotReload());
+		logger.info("service[" + beanName + "] loaded from local snapshot,store not connected.");
+		return s;
+	}
+	
+	private void saveSnapshot(ServiceDesc service){
+		if(snapshot == null){
+			return;
+		}
+		List<String> urls = new ArrayList<String>();
+		for(ProviderUrl url : service.providerUrls()){
+			urls.add(url.getEncodeUrl());
+		}
+		snapshot.save(service.getId(), service.desc(), urls);
+	}
+	
+	/**
+	 * reloads services which were served from the local snapshot,
+	 * the snapshot copy stays in use if the reload fails and the reload is retried with backoff.
+	 */
+	private void reconcileSnapshotServices(){
+		if(snapshotServices.isEmpty() || !store.isConnected()){
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for(Map.Entry<String, SnapshotReload> e : snapshotServices.entrySet()){
+			SnapshotReload reload = e.getValue();
+			if(reload.retryAt > now){
+				continue;
+			}
+			String beanName = e.getKey();
+			try{
+				ServiceDesc s = loadFromStore(beanName);
+				snapshotServices.remove(beanName, reload);
+				if(serviceStore.asMap().replace(beanName, s) == null){
+					releaseService(beanName);
+				}
+				logger.info("service[" + beanName + "] reloaded from store,snapshot copy replaced.");
+			}
+			catch(RegistryException ex){
+				reload.retryAt = now + snapshotReloadBackoff.delayMillis(reload.attempt ++);
+				logger.warn("service[" + beanName + "] reload failed,keep the snapshot copy:" + ex.getMessage());
+			}
 		}
 	}
 	
+	/**
+	 * loads the declared services and every service of the declared domains in parallel,
+	 * the registry is ready when all of them are loaded or failed.
+	 */
+	private void prefetch(){
+		final CountDownLatch latch = new CountDownLatch(1);
+		readyLatch = latch;
+		if(prefetchServices.isEmpty() && prefetchDomains.isEmpty()){
+			latch.countDown();
+			return;
+		}
+		loaderExecutor().execute(new Runnable(){
+			@Override
+			public void run() {
+				Set<String> beanNames = new LinkedHashSet<String>(prefetchServices);
+				for(String domain : prefetchDomains){
+					try{
+						beanNames.addAll(store.getChildren(buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain)));
+					}
+					catch(StoreException e){
+						logger.warn("prefetch domain[" + domain + "] services failed:" + e.getMessage());
+					}
+				}
+				if(beanNames.isEmpty()){
+					latch.countDown();
+					return;
+				}
+				final long start = System.currentTimeMillis();
+				final AtomicInteger remain = new AtomicInteger(beanNames.size());
+				for(final String beanName : beanNames){
+					loaderExecutor().execute(new Runnable(){
+						@Override
+						public void run() {
+							try{
+								serviceStore.get(beanName);
+							}
+							catch(Exception e){
+								logger.warn("prefetch service[" + beanName + "] failed:" + e.getMessage());
+							}
+							finally{
+								if(remain.decrementAndGet() == 0){
+									latch.countDown();
+									logger.info("registry prefetch finished in " + (System.currentTimeMillis() - start) + "ms.");
+								}
+							}
+						}
+					});
+				}
+			}
+		});
+	}
+	
+	private synchronized ExecutorService loaderExecutor(){
+		if(loaderExec == null){
+			loaderExec = Executors.newFixedThreadPool(LOADER_THREADS, VirtualThreads.platformFactory("ssdev-rpc-registry-loader-"));
+		}
+		return loaderExec;
+	}
+	
+	/**
+	 * after a session expiry cached services keep serving,each one is compared with the
+	 * data version seen at load time and only changed or deleted ones are reloaded.
+	 * the version reads are all in flight at once and awaited together.
+	 */
+	private void revalidateServices(){
+		if(!(store instanceof VersionedStore)){
+			serviceStore.invalidateAll();
+			return;
+		}
+		loaderExecutor().execute(new Runnable(){
+			@Override
+			public void run() {
+				VersionedStore vs = (VersionedStore)store;
+				Map<String,ListenableFuture<Integer>> versions = new HashMap<String,ListenableFuture<Integer>>();
+				for(String beanName : serviceStore.asMap().keySet()){
+					versions.put(beanName, vs.getDataVersionAsync(servicePath(beanName)));
+				}
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(REVALIDATE_TIMEOUT_SECONDS);
+				int changed = 0;
+				for(Map.Entry<String,ListenableFuture<Integer>> e : versions.entrySet()){
+					String beanName = e.getKey();
+					Integer version = serviceVersions.get(beanName);
+					try{
+						Integer current = e.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+						if(version != null && version.equals(current)){
+							continue;
+						}
+					}
+					catch(ExecutionException ex){
+						Throwable cause = ex.getCause();
+						if(!(cause instanceof StoreException) || !((StoreException)cause).isPathNotExist()){
+							logger.warn("service[" + beanName + "] revalidate failed,keep cached one:" + cause.getMessage());
+							continue;
+						}
+					}
+					catch(TimeoutException ex){
+						e.getValue().cancel(false);
+						logger.warn("service[" + beanName + "] revalidate timeout,keep cached one.");
+						continue;
+					}
+					catch(InterruptedException ex){
+						Thread.currentThread().interrupt();
+						return;
+					}
+					serviceStore.invalidate(beanName);
+					changed ++;
+				}
+				logger.info("registry revalidated after session expired," + changed + " service(s) changed.");
+			}
+		});
+	}
+	
+	public boolean isReady(){
+		return readyLatch.getCount() == 0;
+	}
+	
+	public boolean awaitReady(long timeout,TimeUnit unit) throws InterruptedException{
+		return readyLatch.await(timeout, unit);
+	}
+	
+	public void setPrefetchServices(List<String> prefetchServices){
+		this.prefetchServices = prefetchServices;
+	}
+	
+	public void setPrefetchDomains(List<String> prefetchDomains){
+		this.prefetchDomains = prefetchDomains;
+	}
+	
 	@Override
 	public ServiceDesc find(String beanName) throws RegistryException{
+		if(snapshot != null && !store.isConnected()){
+			ServiceDesc s = serviceStore.getIfPresent(beanName);
+			if(s == null){
+				s = loadFromSnapshot(beanName);
+			}
+			if(s != null){
+				return s;
+			}
+		}
 		store.connectingAwait();
 		try {
 			return serviceStore.get(beanName);
@@ -136,97 +541,208 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 
 	
 	public  void startServiceRegistryWatch(final String beanName,final String path){
+		final String key = "service:" + path;
+		watchManager.watch(key, new WatchManager.Watch(){
+			@Override
+			public void arm() throws StoreException {
+				store.isPathExist(path, new NodeListener(){
+					@Override
+					public void onDeleted(String path){
+						watchManager.unwatch(key);
+						serviceStore.invalidate(beanName);
+						if(snapshot != null){
+							snapshot.remove(beanName);
+						}
+						logger.info("service[" + beanName + "] unregistered.");
+					}
+					
+					@Override
+					public void onDataChanged(String path){
+						watchManager.unwatch(key);
+						serviceStore.invalidate(beanName);
+						logger.info("service[" + beanName + "] updated,clear local cache.");
+					}
+					
+				});
+			}
+		});
+	}
 	
-		try{
-			store.isPathExist(path, new NodeListener(){
-				@Override
-				public void onDeleted(String path){
-					serviceStore.invalidate(beanName);
-					logger.info("service[" + beanName + "] unregistered.");
-				}
-				
-				@Override
-				public void onDataChanged(String path){
-					serviceStore.invalidate(beanName);
-					logger.info("service[" + beanName + "] updated,clear local cache.");
+	/**
+	 * remote zones are best effort and loaded off the find thread,the first arm of each zone watch
+	 * reads its providers,so a slow or down zone neither delays the load nor costs a second round trip.
+	 */
+	private void loadZoneProviders(final ServiceDesc service,final String providerUrlsRoot){
+		if(zoneStores.isEmpty()){
+			return;
+		}
+		loaderExecutor().execute(new Runnable(){
+			@Override
+			public void run() {
+				for(Map.Entry<String, ActiveStore> e : zoneStores.entrySet()){
+					startProviderUrlsWatch(service.getId(),providerUrlsRoot,e.getKey(),e.getValue(),service);
 				}
-				
-			});
-			
+			}
+		});
+	}
+	
+	/**
+	 * zone null is the primary store.
+	 */
+	private String providerUrlsWatchKey(String zone,String path){
+		return zone == null ? "providers:" + path : "providers@" + zone + ":" + path;
+	}
+	
+	private void startProviderUrlsWatch(String beanName,String path,String zone,ActiveStore zoneStore){
+		startProviderUrlsWatch(beanName,path,zone,zoneStore,null);
+	}
+	
+	/**
+	 * loading is the service being loaded,its providers are updated even before it enters the cache.
+	 */
+	private void startProviderUrlsWatch(final String beanName,final String path,final String zone,final ActiveStore zoneStore,final ServiceDesc loading){
+		final String key = providerUrlsWatchKey(zone,path);
+		watchManager.watch(key, new WatchManager.Watch(){
+			@Override
+			public void arm() throws StoreException {
+				armProviderUrlsWatch(beanName,key,path,zone,zoneStore,loading);
+			}
+		});
+	}
+	
+	/**
+	 * keeps the children of every zone apart and applies their union,providers of remote zones are
+	 * tagged with their zone so that {@link ProviderSnapshot} can prefer the local ones.
+	 */
+	private void updateZoneProviders(ServiceDesc service,String zone,List<String> ls){
+		if(ls == null){
+			return;
 		}
-		catch(StoreException e){
-			logger.error(e.getMessage(),e);
-			try {
-				TimeUnit.SECONDS.sleep(RETRY_DELAY);
-			} 
-			catch (InterruptedException e1) {
-				Thread.currentThread().interrupt();
+		if(zoneStores.isEmpty()){
+			updateServiceProvoders(service,ls);
+			return;
+		}
+		String beanName = service.getId();
+		ConcurrentHashMap<String, List<String>> zones = zoneProviderUrls.get(beanName);
+		if(zones == null){
+			zones = new ConcurrentHashMap<>();
+			ConcurrentHashMap<String, List<String>> old = zoneProviderUrls.putIfAbsent(beanName, zones);
+			if(old != null){
+				zones = old;
 			}
-			startServiceRegistryWatch(beanName,path);
 		}
+		String localZone = ProviderZones.getLocalZone();
+		zones.put(zone == null ? localZone : zone, ls);
 		
+		Set<String> merged = new LinkedHashSet<String>();
+		Map<String,String> tags = new HashMap<String,String>();
+		for(Map.Entry<String, List<String>> e : zones.entrySet()){
+			merged.addAll(e.getValue());
+			if(!e.getKey().equals(localZone)){
+				for(String child : e.getValue()){
+					tags.put(child, e.getKey());
+				}
+			}
+		}
+		ProviderZones.tag(beanName, tags);
+		updateServiceProvoders(service,new ArrayList<String>(merged));
 	}
 	
-	private void startProviderUrlsWatch(final String beanName,final String path){
-		startProviderUrlsWatch(beanName,path,false);
-	}
-	
+	/**
+	 * diffs children against the current providers,existing ProviderUrl instances
+	 * (and their failure state) are kept and only new children are decoded.
+	 */
 	private void updateServiceProvoders(ServiceDesc service,List<String> ls){
 		if(ls == null){
 			return;
 		}
-		List<ProviderUrl> urls = new ArrayList<ProviderUrl>();
+		Map<String,ProviderUrl> current = new HashMap<String,ProviderUrl>();
+		for(ProviderUrl url : service.providerUrls()){
+			current.put(url.getEncodeUrl(), url);
+		}
+		
+		List<ProviderUrl> urls = new ArrayList<ProviderUrl>(ls.size());
+		boolean added = false;
 		for(String s : ls){
-			try {
-				String urlPath = URLDecoder.decode(s, CHARSET);
-				ProviderUrl url = new ProviderUrl(urlPath);
-				url.setBeanName(service.getId());
-				urls.add(url);
+			ProviderUrl url = current.remove(s);
+			if(url == null){
+				try {
+					String urlPath = URLDecoder.decode(s, CHARSET);
+					url = new ProviderUrl(urlPath);
+					url.setBeanName(service.getId());
+					added = true;
+				}
+				catch (UnsupportedEncodingException e) {
+					continue;
+				}
 			}
-			catch (UnsupportedEncodingException e) {}
+			urls.add(url);
 		}
-		service.updateProviderUrls(urls);
+		if(added){
+			service.updateProviderUrls(urls);
+		}
+		else{
+			for(ProviderUrl removed : current.values()){
+				service.removeProviderUrl(removed);
+			}
+		}
+		ProviderSnapshot.publish(service);
+		reweigh(service,urls.size());
 	}
 	
-	private void startProviderUrlsWatch(final String beanName,final String path,boolean justWactchEvent){
-		try{
-			ProviderUrlListener lis = new ProviderUrlListener(){
-				@Override
-				public void onChildrenChanged(String path){
-					if(!isDisabled() && serviceStore.asMap().containsKey(beanName)){
-						startProviderUrlsWatch(beanName,path);
-					}
-				}
-				
-				@Override
-				public void onConnected(){//reconnected
-					if(!isDisabled() && serviceStore.asMap().containsKey(beanName)){
-						startProviderUrlsWatch(beanName,path);
-					}
+	/**
+	 * the cache weighs an entry only when it is stored,a service whose provider count moved far from
+	 * the weighed one is stored again in place so maximumWeight keeps tracking its real cost.
+	 */
+	private void reweigh(ServiceDesc service,int providers){
+		String beanName = service.getId();
+		Integer weighed = weighedProviders.get(beanName);
+		if(weighed == null || Math.abs(providers - weighed) <= Math.max(REWEIGH_MIN_URLS, weighed / 2)){
+			return;
+		}
+		serviceStore.asMap().replace(beanName, service, service);
+	}
+	
+	private void armProviderUrlsWatch(final String beanName,final String key,String path,String zone,ActiveStore zoneStore,ServiceDesc loading) throws StoreException{
+		ProviderUrlListener lis = new ProviderUrlListener(){
+			@Override
+			public void onChildrenChanged(String path){
+				if(isCached()){
+					watchManager.rearm(key);
 				}
-			};
-			
-			List<String> ls = store.getChildren(path, lis);
-			ProviderUrlListener old = providerUrlListeners.put(path, lis);
-			if(old != null){
-				old.setDisabled(true);
 			}
-			if(justWactchEvent){
-				return;
+			
+			@Override
+			public void onConnected(){//reconnected
+				if(isCached()){
+					watchManager.rearmLater(key);
+				}
 			}
-			ServiceDesc service = serviceStore.getIfPresent(beanName);
-			if(service != null && ls != null){
-				updateServiceProvoders(service,ls);
+			
+			private boolean isCached(){
+				if(isDisabled()){
+					return false;
+				}
+				if(serviceStore.asMap().containsKey(beanName)){
+					return true;
+				}
+				watchManager.unwatch(key);
+				return false;
 			}
+		};
+		
+		List<String> ls = zoneStore.getChildren(path, lis);
+		ProviderUrlListener old = providerUrlListeners.put(key, lis);
+		if(old != null){
+			old.setDisabled(true);
 		}
-		catch(StoreException e){
-			logger.error(e.getMessage(),e);
-			try {
-				TimeUnit.SECONDS.sleep(RETRY_DELAY);
-			} 
-			catch (InterruptedException e1) {
-			}
-			startProviderUrlsWatch(beanName,path);
+		ServiceDesc service = serviceStore.getIfPresent(beanName);
+		if(service == null){
+			service = loading;
+		}
+		if(service != null && ls != null){
+			updateZoneProviders(service,zone,ls);
+			saveSnapshot(service);
 		}
 	}
 	
@@ -255,78 +771,227 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 		String servicePath = buildPathStr(domainServiceRoot , "/" , beanName) ;
 	
 		try {
-			if(!store.isPathExist(domainServiceRoot)){
-				store.createPath(domainServiceRoot,null);
-			}
-			byte[] serviceData = serviceDesc.getBytes(CHARSET);
-			if(!store.isPathExist(servicePath)){
-				store.createPath(servicePath, serviceData);
-				store.createPath(buildPathStr(servicePath , "/" , StoreConstants.SERVICE_ACL), null);
-				store.createPath(buildPathStr(servicePath , "/" , StoreConstants.SERVICE_PROVIDERS), null);
-				logger.info("service[" + beanName + "] path created.");
-			}
-			else{
-
-				byte[] data = store.getData(servicePath);
-				String serverSideDesc = new String(data,CHARSET);
-				
-				ServiceDesc L = ServiceDesc.parse(serviceDesc);
-				ServiceDesc S = ServiceDesc.parse(serverSideDesc);
-				
-				if(!L.equals(S)){
-					if(overwrite){
-						store.setData(servicePath, serviceData);
-						logger.info("service[" + beanName + "] overwrited.");
-					}
-					else{
-						throw new IllegalStateException("service[" + beanName + "] is not compatible with the registry one,deploy failed.");
-					}
-				}
-
-			}
+			deployDomainRoot(domainServiceRoot);
+			deployServiceNode(beanName,servicePath,serviceDesc,overwrite);
 		} 
 		catch(StoreException e){
 			throw new RegistryException(e);
 		}
-		catch (UnsupportedEncodingException e) {
+		catch (IOException e) {
 			throw new RegistryException(e);
 		}
 	}
 	
+	private void deployDomainRoot(String domainServiceRoot) throws StoreException{
+		if(!store.isPathExist(domainServiceRoot)){
+			store.createPath(domainServiceRoot,null);
+		}
+	}
+	
+	private void deployServiceNode(String beanName,String servicePath,String serviceDesc,boolean overwrite) throws StoreException,IOException{
+		byte[] data = null;
+		try{
+			data = store.getData(servicePath);
+		}
+		catch(StoreException e){
+			if(!e.isPathNotExist()){
+				throw e;
+			}
+		}
+		boolean routingExist = data != null && store.isPathExist(buildPathStr(servicePath , "/" , SERVICE_ROUTING));
+		StoreTransaction tx = new StoreTransaction();
+		appendServiceNode(tx,beanName,servicePath,serviceDesc,overwrite,data,routingExist);
+		if(!tx.isEmpty()){
+			commit(tx);
+		}
+	}
+	
+	/**
+	 * the writes the service node needs given what the store holds,data is null when the node is missing.
+	 * services deployed before routing rules existed lack the routing node,consumers only watch for it.
+	 */
+	private void appendServiceNode(StoreTransaction tx,String beanName,String servicePath,String serviceDesc,
+			boolean overwrite,byte[] data,boolean routingExist) throws IOException{
+		byte[] serviceData = binaryDescFormat ? ServiceDescCodec.encode(serviceDesc) : serviceDesc.getBytes(CHARSET);
+		if(data == null){
+			tx.createPath(servicePath, serviceData)
+				.createPath(buildPathStr(servicePath , "/" , StoreConstants.SERVICE_ACL), null)
+				.createPath(buildPathStr(servicePath , "/" , SERVICE_ROUTING), null)
+				.createPath(buildPathStr(servicePath , "/" , StoreConstants.SERVICE_PROVIDERS), null);
+			logger.info("service[" + beanName + "] path created.");
+			return;
+		}
+		if(!routingExist){
+			tx.createPath(buildPathStr(servicePath , "/" , SERVICE_ROUTING), null);
+		}
+		if(ServiceDescCodec.readHash(data) != ServiceDescCodec.hash(serviceDesc)
+				&& !ServiceDesc.parse(serviceDesc).equals(ServiceDesc.parse(ServiceDescCodec.decode(data)))){
+			if(!overwrite){
+				throw new IllegalStateException("service[" + beanName + "] is not compatible with the registry one,deploy failed.");
+			}
+			tx.setData(servicePath, serviceData);
+			logger.info("service[" + beanName + "] overwrited.");
+		}
+	}
+	
 	public void deployProviderUrl(ServiceDesc service) throws RegistryException{
+		try{
+			StoreTransaction tx = new StoreTransaction();
+			appendProviderUrls(tx,service);
+			commit(tx);
+		}
+		catch(StoreException e){
+			throw new RegistryException(e);
+		}
+		onProviderUrlDeployed(service);
+	}
+	
+	private String providerUrlsRootOf(ServiceDesc service){
 		String domain = service.getAppDomain();
 		if(StringUtils.isEmpty(domain)){
 			domain = AppDomainContext.getName();
 		}
 		String domainServiceRoot = buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain);
-		
-		String beanName = service.getId();	
-		String providerUrlsRoot = buildPathStr(domainServiceRoot,"/",beanName,"/",StoreConstants.SERVICE_PROVIDERS);
-		
+		return buildPathStr(domainServiceRoot,"/",service.getId(),"/",StoreConstants.SERVICE_PROVIDERS);
+	}
+	
+	private void appendProviderUrls(StoreTransaction tx,ServiceDesc service) throws StoreException{
+		String providerUrlsRoot = providerUrlsRootOf(service);
+		List<String> existed = null;
 		try{
-			if(!store.isPathExist(providerUrlsRoot)){
-				store.createPath(providerUrlsRoot,null);
+			existed = store.getChildren(providerUrlsRoot);
+		}
+		catch(StoreException e){
+			if(!e.isPathNotExist()){
+				throw e;
 			}
-			
-			for(ServerUrl url : serverUrls){
-				
-				String providerUrlPath = buildPathStr(providerUrlsRoot , "/" , url.getEncodeUrl());
-				if(store.isPathExist(providerUrlPath)){
-					store.delete(providerUrlPath);
-				}
-				store.createTempPath(providerUrlPath, null);
+		}
+		for(String stale : appendProviderUrls(tx,providerUrlsRoot,existed)){
+			deleteStaleProviderUrl(stale);
+		}
+	}
+	
+	/**
+	 * existed is null when the providers node is missing.
+	 * @return the ephemerals of a previous session,to be deleted before tx is committed
+	 */
+	private List<String> appendProviderUrls(StoreTransaction tx,String providerUrlsRoot,List<String> existed){
+		if(existed == null){
+			existed = Collections.emptyList();
+			tx.createPath(providerUrlsRoot, null);
+		}
+		List<String> stale = new ArrayList<String>();
+		for(ServerUrl url : serverUrls){
+			String encodeUrl = url.getEncodeUrl();
+			String providerUrlPath = buildPathStr(providerUrlsRoot , "/" , encodeUrl);
+			if(existed.contains(encodeUrl)){
+				stale.add(providerUrlPath);
+			}
+			tx.createTempPath(providerUrlPath, null);
+		}
+		return stale;
+	}
+	
+	/**
+	 * the ephemeral of a previous session,deleted outside the transaction because it disappears
+	 * by itself once that session expires and a failed delete would fail the whole batch.
+	 */
+	private void deleteStaleProviderUrl(String path) throws StoreException{
+		try{
+			store.delete(path);
+		}
+		catch(StoreException e){
+			if(!e.isPathNotExist()){
+				throw e;
 			}
-			deployedSet.add(service);
-			startWatchACL(service);
+		}
+	}
+	
+	private void onProviderUrlDeployed(ServiceDesc service){
+		try{
+			removeDrainRules(service);
 		}
 		catch(StoreException e){
-			throw new RegistryException(e);
+			logger.warn("service[{}] remove stale drain rules failed:{}",service.getId(),e.getMessage());
+		}
+		deployedSet.add(service);
+		startWatchACL(service);
+		logger.info("service[" + service.getId() + "] online.");
+	}
+	
+	private void commit(StoreTransaction tx) throws StoreException{
+		if(store instanceof TransactionalStore){
+			((TransactionalStore)store).commit(tx);
+			return;
+		}
+		for(StoreTransaction.Operation o : tx.getOperations()){
+			switch(o.getType()){
+				case CREATE:
+					store.createPath(o.getPath(), o.getData());
+					break;
+				case CREATE_TEMP:
+					store.createTempPath(o.getPath(), o.getData());
+					break;
+				case SET_DATA:
+					store.setData(o.getPath(), o.getData());
+					break;
+				case DELETE:
+					store.delete(o.getPath());
+					break;
+			}
 		}
-		
-		logger.info("service[" + beanName + "] online.");
 	}
 	
 	public void undeployProviderUrl(ServiceDesc service) throws StoreException{
+		undeployProviderUrl(service,DRAIN_TIMEOUT_MILLIS);
+	}
+	
+	/**
+	 * drains before removing: the providers of this server get weight 0 in the routing rules,
+	 * clients are given DRAIN_PROPAGATION_MILLIS to pick that up and in-flight invocations
+	 * drainTimeoutMillis to finish.timeout 0 removes immediately.
+	 */
+	public void undeployProviderUrl(ServiceDesc service,long drainTimeoutMillis) throws StoreException{
+		if(drainTimeoutMillis > 0){
+			List<ServiceDesc> services = Collections.singletonList(service);
+			drain(services,service.getId(),drainTimeoutMillis);
+			removeProviderUrl(service);
+			removeDrainRules(service);
+		}
+		else{
+			removeProviderUrl(service);
+		}
+	}
+	
+	private void drain(List<ServiceDesc> services,String beanName,long drainTimeoutMillis) throws StoreException{
+		for(ServiceDesc service : services){
+			for(ServerUrl url : serverUrls){
+				addServiceRoutingRule(service.getId(), drainRule(url));
+			}
+			logger.info("service[{}] draining.",service.getId());
+		}
+		try{
+			TimeUnit.MILLISECONDS.sleep(Math.min(DRAIN_PROPAGATION_MILLIS, drainTimeoutMillis));
+			if(!Dispatcher.instance().awaitIdle(beanName, drainTimeoutMillis, TimeUnit.MILLISECONDS)){
+				logger.warn("service[{}] still busy after drain timeout {}ms.",beanName == null ? "*" : beanName,drainTimeoutMillis);
+			}
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void removeDrainRules(ServiceDesc service) throws StoreException{
+		for(ServerUrl url : serverUrls){
+			removeServiceRoutingRule(service.getId(), drainRule(url));
+		}
+	}
+	
+	private String drainRule(ServerUrl url){
+		return "weight@" + RoutingRules.addressOf(url.getUrl()) + "=0";
+	}
+	
+	private void removeProviderUrl(ServiceDesc service) throws StoreException{
 		String domain = service.getAppDomain();
 		if(StringUtils.isEmpty(domain)){
 			domain = AppDomainContext.getName();
@@ -335,10 +1000,10 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 		
 		String beanName = service.getId();
 		for(ServerUrl url : serverUrls){
-			String providerUrlPath = buildPathStr(domainServiceRoot,"/",beanName,"/",StoreConstants.SERVICE_PROVIDERS,"/",url.getUrl());
-			store.delete(providerUrlPath);
-			deployedSet.remove(service);
+			String providerUrlPath = buildPathStr(domainServiceRoot,"/",beanName,"/",StoreConstants.SERVICE_PROVIDERS,"/",url.getEncodeUrl());
+			deleteStaleProviderUrl(providerUrlPath);
 		}
+		deployedSet.remove(service);
 		
 		logger.info("service[" + beanName + "] offline");
 	}
@@ -378,34 +1043,110 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 	}
 	
 	private void startWatchACL(final ServiceDesc service){
-		String beanName = service.getId();
+		final String beanName = service.getId();
+		final String key = "acl:" + beanName;
 		
 		if(!deployedSet.contains(service)){
 			logger.info("service[" + beanName + "] stopping watch ACL as be offlined.");
+			watchManager.unwatch(key);
 			return;
 		}
 		
-		String path = buildPathStr(domainServiceRoot, "/" , beanName , "/" , StoreConstants.SERVICE_ACL);
-		try{
-			List<String> ls = store.getChildren(path, new NodeListener(){
-				@Override
-				public void onChildrenChanged(String path){
-					startWatchACL(service);
+		final String path = buildPathStr(domainServiceRoot, "/" , beanName , "/" , StoreConstants.SERVICE_ACL);
+		watchManager.watch(key, new WatchManager.Watch(){
+			@Override
+			public void arm() throws StoreException {
+				List<String> ls = store.getChildren(path, new NodeListener(){
+					@Override
+					public void onChildrenChanged(String path){
+						if(deployedSet.contains(service)){
+							watchManager.rearm(key);
+						}
+						else{
+							logger.info("service[" + beanName + "] stopping watch ACL as be offlined.");
+							watchManager.unwatch(key);
+						}
+					}
+				});
+				service.updateACL(ACListType.whiteList, ls);
+			}
+		});
+	}
+	
+	/**
+	 * the routing node is created by deploy,while it is missing an exists watch waits for it
+	 * and the service routes without rules.
+	 */
+	private void startWatchRouting(final String beanName,String servicePath){
+		final String key = "routing:" + beanName;
+		final String path = buildPathStr(servicePath , "/" , SERVICE_ROUTING);
+		watchManager.watch(key, new WatchManager.Watch(){
+			@Override
+			public void arm() throws StoreException {
+				NodeListener lis = new NodeListener(){
+					@Override
+					public void onChildrenChanged(String path){
+						fired();
+					}
+					
+					@Override
+					public void onCreated(String path){
+						fired();
+					}
+					
+					@Override
+					public void onDeleted(String path){
+						fired();
+					}
+					
+					private void fired(){
+						if(serviceStore.asMap().containsKey(beanName)){
+							watchManager.rearm(key);
+						}
+						else{
+							watchManager.unwatch(key);
+						}
+					}
+				};
+				List<String> ls = Collections.emptyList();
+				if(store.isPathExist(path, lis)){
+					ls = store.getChildren(path, lis);
+				}
+				RoutingRules.update(beanName, ls);
+				ServiceDesc service = serviceStore.getIfPresent(beanName);
+				if(service != null){
+					ProviderSnapshot.publish(service);
 				}
-			});
-			service.updateACL(ACListType.whiteList, ls);
-		}
-		catch(StoreException e){
-			logger.error(e.getMessage(),e);
-			try {
-				TimeUnit.SECONDS.sleep(RETRY_DELAY);
-			} 
-			catch (InterruptedException e1) {
 			}
-			startWatchACL(service);
+		});
+	}
+	
+	public void addServiceRoutingRule(String beanName,String rule) throws StoreException{
+		String path = buildPathStr(servicePath(beanName) , "/" , SERVICE_ROUTING);
+		if(!store.isPathExist(path)){
+			store.createPath(path, null);
+		}
+		String rulePath = buildPathStr(path , "/" , rule);
+		if(!store.isPathExist(rulePath)){
+			store.createPath(rulePath, null);
+		}
+	}
+	
+	public void removeServiceRoutingRule(String beanName,String rule) throws StoreException{
+		String rulePath = buildPathStr(servicePath(beanName) , "/" , SERVICE_ROUTING , "/" , rule);
+		if(store.isPathExist(rulePath)){
+			store.delete(rulePath);
 		}
 	}
 	
+	public int getArmedWatchCount(){
+		return watchManager.getArmedCount();
+	}
+	
+	public int getPendingWatchCount(){
+		return watchManager.getPendingCount();
+	}
+	
 	private void deployDomainServerNode() throws StoreException{
 		String domain = AppDomainContext.getName();
 		String serverNodesHome = StoreConstants.SERVERNODES_HOME;
@@ -442,9 +1183,39 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 		}
 	}
 	
+	/**
+	 * drains every deployed service at once before the registry goes down,
+	 * so a rolling restart does not fail the invocations already routed here.
+	 */
 	@Override
 	public void shutdown(){
+		if(store != null && store.isConnected() && !deployedSet.isEmpty()){
+			List<ServiceDesc> services = new ArrayList<ServiceDesc>(deployedSet);
+			try{
+				drain(services,null,DRAIN_TIMEOUT_MILLIS);
+				for(ServiceDesc service : services){
+					removeProviderUrl(service);
+					removeDrainRules(service);
+				}
+			}
+			catch(StoreException e){
+				logger.error("drain services before shutdown failed.",e);
+			}
+			catch(RuntimeException e){
+				logger.error("drain services before shutdown failed.",e);
+			}
+		}
 		super.shutdown();
+		watchManager.shutdown();
+		if(loaderExec != null){
+			loaderExec.shutdownNow();
+		}
+		if(probeExec != null){
+			probeExec.shutdownNow();
+		}
+		for(ActiveStore zoneStore : zoneStores.values()){
+			zoneStore.close();
+		}
 		t.interrupt();
 	}
 	
@@ -453,19 +1224,80 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 		store.addStateListener(this);
 	}
 	
+	/**
+	 * enables the on-disk service snapshot under path.
+	 */
+	public void setSnapshotPath(String path){
+		this.snapshot = new RegistrySnapshot(path);
+	}
+	
 	public ActiveStore getStore(){
 		return store;
 	}
 	
+	/**
+	 * federates the registry of another zone,its providers are merged into every cached service
+	 * but only used when the local zone has no or too few healthy providers.
+	 * service descriptions and deploys stay on the primary store.
+	 */
+	public void addZoneStore(final String zone,ActiveStore zoneStore){
+		if(zone.equals(ProviderZones.getLocalZone())){
+			throw new IllegalArgumentException("zone[" + zone + "] is the local zone.");
+		}
+		zoneStores.put(zone, zoneStore);
+		zoneStore.addStateListener(new StateListener(){
+			@Override
+			public void onConnected(){
+				watchManager.rearmPending();
+			}
+			
+			@Override
+			public void onExpired(){
+				watchManager.rearmAll(providerUrlsWatchKey(zone,""));
+				logger.info("zone[{}] registry session rebuilded,rearm its provider watches.",zone);
+			}
+			
+			@Override
+			public void onDisconnected(){
+				
+			}
+		});
+	}
+	
+	private void connectZoneStores(){
+		for(final Map.Entry<String, ActiveStore> e : zoneStores.entrySet()){
+			loaderExecutor().execute(new Runnable(){
+				@Override
+				public void run() {
+					try {
+						e.getValue().connect();
+						logger.info("zone[{}] registry connected to server[{}]",e.getKey(),e.getValue().getServerAddress());
+					}
+					catch (StoreException ex) {
+						logger.error("zone[{}] registry connect failed.",e.getKey(),ex);
+						return;
+					}
+					for(ServiceDesc service : serviceStore.asMap().values()){
+						String providerUrlsRoot = buildPathStr(servicePath(service.getId()) , "/" , StoreConstants.SERVICE_PROVIDERS);
+						startProviderUrlsWatch(service.getId(),providerUrlsRoot,e.getKey(),e.getValue());
+					}
+				}
+			});
+		}
+	}
+	
 	@Override
 	public void onConnected(){
-		
+		watchManager.rearmPending();
+		signalPublish();
 	}
 	
 	@Override
 	public void onExpired(){
 		try {
-			serviceStore.invalidateAll();
+			watchManager.rearmAll();
+			revalidateServices();
+			prefetch();
 			deployDomainServerNode();
 		} 
 		catch (StoreException e) {
@@ -486,16 +1318,21 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 	public void run() {
 		try{
 			prepareStore();
+			prefetch();
 			deployDomainServerNode();
 			while(running && !Thread.currentThread().isInterrupted()){
 				try{
 					deployLocalServices();
 					checkLastFailedURls();
-					TimeUnit.SECONDS.sleep(PUBLISH_CHECK_DELAY);
+					reconcileSnapshotServices();
+					awaitPublishSignal();
 				}
 				catch(StoreException e){
 					logger.error("ServiceRegistry thread error.",e);
 				}
+				catch(RegistryException e){
+					logger.error("ServiceRegistry deploy error.",e);
+				}
 				catch(InterruptedException e){
 					Thread.currentThread().interrupt();
 				}
@@ -511,43 +1348,398 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 	
 	
 	private void checkLastFailedURls() throws StoreException {
+		if(lastConnectFailedUrls.isEmpty()){
+			return;
+		}
+		List<ProviderUrl> urls = quarantinedUrls();
+		if(!(store instanceof AsyncStore)){
+			for(ProviderUrl url : urls){
+				FailedUrlCheck check = newFailedUrlCheck(url);
+				if(check != null){
+					applyFailedUrlCheck(check,store.isPathExist(check.path));
+				}
+			}
+			return;
+		}
 		
-		for(ProviderUrl url : lastConnectFailedUrls){
-			String beanName = url.getBeanName();
-			ServiceDesc service = serviceStore.getIfPresent(beanName); 
-			if(service == null){
-				lastConnectFailedUrls.remove(url);
+		List<FailedUrlCheck> checks = new ArrayList<FailedUrlCheck>();
+		for(ProviderUrl url : urls){
+			if(probingUrls.contains(url)){
 				continue;
 			}
-			String domain = service.getAppDomain();		
-			String providerUrlPath = buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain,"/",beanName,"/",StoreConstants.SERVICE_PROVIDERS,"/" , url.getEncodeUrl());
-			if(store.isPathExist(providerUrlPath)){
-				url.setLastConnectFailed(false);
+			FailedUrlCheck check = newFailedUrlCheck(url);
+			if(check != null){
+				check.exist = ((AsyncStore)store).isPathExistAsync(check.path, null);
+				checks.add(check);
 			}
-			else{
-				service.removeProviderUrl(url);
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FAILED_URL_CHECK_TIMEOUT_MILLIS);
+		for(final FailedUrlCheck check : checks){
+			Boolean exist = awaitCheck(check.exist,deadline);
+			if(exist == null){
+				continue;
 			}
+			if(exist && activeProbe){
+				if(!probingUrls.add(check.url)){
+					continue;
+				}
+				try{
+					check.probe = probeExecutor().submit(new Callable<Boolean>(){
+						@Override
+						public Boolean call() throws Exception {
+							try{
+								return probe(check.url);
+							}
+							finally{
+								probingUrls.remove(check.url);
+							}
+						}
+					});
+				}
+				catch(RejectedExecutionException e){
+					probingUrls.remove(check.url);
+				}
+				continue;
+			}
+			applyFailedUrlCheck(check,exist);
+		}
+		for(FailedUrlCheck check : checks){
+			if(check.probe == null){
+				continue;
+			}
+			if(Boolean.TRUE.equals(awaitCheck(check.probe,deadline))){
+				applyFailedUrlCheck(check,true);
+			}
+			else if(check.probe.isCancelled()){
+				probingUrls.remove(check.url);
+			}
+		}
+	}
+	
+	/**
+	 * failed urls are only checked after FAILED_URL_CHECK_DELAY_MILLIS,a provider whose node
+	 * outlives its process must not be selected again right after it failed.
+	 */
+	private List<ProviderUrl> quarantinedUrls(){
+		long now = System.nanoTime();
+		long quarantine = TimeUnit.MILLISECONDS.toNanos(FAILED_URL_CHECK_DELAY_MILLIS);
+		List<ProviderUrl> urls = new ArrayList<ProviderUrl>();
+		for(Map.Entry<ProviderUrl, Long> e : lastConnectFailedUrls.entrySet()){
+			if(now - e.getValue() >= quarantine){
+				urls.add(e.getKey());
+			}
+		}
+		return urls;
+	}
+	
+	private FailedUrlCheck newFailedUrlCheck(ProviderUrl url){
+		String beanName = url.getBeanName();
+		ServiceDesc service = serviceStore.getIfPresent(beanName); 
+		if(service == null){
 			lastConnectFailedUrls.remove(url);
+			return null;
+		}
+		String domain = service.getAppDomain();		
+		String providerUrlPath = buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain,"/",beanName,"/",StoreConstants.SERVICE_PROVIDERS,"/" , url.getEncodeUrl());
+		return new FailedUrlCheck(url,service,providerUrlPath);
+	}
+	
+	private void applyFailedUrlCheck(FailedUrlCheck check,boolean exist){
+		if(exist){
+			check.url.setLastConnectFailed(false);
+		}
+		else{
+			check.service.removeProviderUrl(check.url);
+		}
+		lastConnectFailedUrls.remove(check.url);
+		ProviderSnapshot.publish(check.service);
+	}
+	
+	/**
+	 * null when the check is not finished in time or failed,the url is checked again next round.
+	 * an unfinished check is cancelled so rounds never pile up behind each other.
+	 */
+	private Boolean awaitCheck(Future<Boolean> f,long deadline){
+		try{
+			return f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		catch(TimeoutException e){
+			f.cancel(true);
+			return null;
+		}
+		catch(ExecutionException e){
+			logger.warn("failed url check error:" + e.getCause().getMessage());
+			return null;
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	/**
+	 * probes have their own small pool with a bounded queue,in a mass outage the excess
+	 * is rejected and retried next round instead of starving the loader.
+	 */
+	private synchronized ExecutorService probeExecutor(){
+		if(probeExec == null){
+			probeExec = new ThreadPoolExecutor(PROBE_THREADS, PROBE_THREADS, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(PROBE_QUEUE_SIZE), VirtualThreads.factory("ssdev-rpc-registry-probe-"));
 		}
+		return probeExec;
+	}
+	
+	private boolean probe(ProviderUrl url){
+		try{
+			URI uri = new URI(url.getUrl());
+			if(uri.getHost() == null || uri.getPort() < 0){
+				return true;
+			}
+			Socket socket = new Socket();
+			try{
+				socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort()), PROBE_TIMEOUT_MILLIS);
+				return true;
+			}
+			finally{
+				socket.close();
+			}
+		}
+		catch(URISyntaxException e){
+			return true;
+		}
+		catch(IOException e){
+			return false;
+		}
+	}
+	
+	/**
+	 * writes service descriptors in the binary {@link ServiceDescCodec} format,
+	 * enable only after every node reading the registry understands it.
+	 * existing nodes keep their format until the descriptor itself changes.
+	 */
+	public void setBinaryDescFormat(boolean binaryDescFormat){
+		this.binaryDescFormat = binaryDescFormat;
+	}
+	
+	/**
+	 * when enabled,a failed url whose node still exists is restored only after a tcp connect succeeds.
+	 */
+	public void setActiveProbe(boolean activeProbe){
+		this.activeProbe = activeProbe;
+	}
+	
+	private static class SnapshotReload {
+		private int attempt;
+		private long retryAt;
+	}
+	
+	private static class FailedUrlCheck {
+		private final ProviderUrl url;
+		private final ServiceDesc service;
+		private final String path;
+		private Future<Boolean> exist;
+		private Future<Boolean> probe;
 		
+		FailedUrlCheck(ProviderUrl url,ServiceDesc service,String path){
+			this.url = url;
+			this.service = service;
+			this.path = path;
+		}
 	}
 
+	/**
+	 * the domain root is checked once per round,with an {@link AsyncStore} the reads of every
+	 * service in a batch are in flight together and the batch is written in one transaction.
+	 */
 	private void deployLocalServices() throws RegistryException{
-		
-		ServiceDesc service = null;
+		if(uploadQueue.isEmpty()){
+			return;
+		}
+		if(serverUrls.isEmpty()){
+			throw new RegistryException("serverUrls is empty,deploy abort.");
+		}
 		String domain = AppDomainContext.getName();
-		while((service = uploadQueue.poll()) != null){
-			if(serverUrls.isEmpty()){
-				throw new RegistryException("serverUrls is empty,deploy abort.");
+		try{
+			deployDomainRoot(buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain));
+		}
+		catch(StoreException e){
+			throw new RegistryException(e);
+		}
+		List<ServiceDesc> services = new ArrayList<ServiceDesc>();
+		ServiceDesc polled = null;
+		while((polled = uploadQueue.poll()) != null){
+			services.add(polled);
+		}
+		if(store instanceof AsyncStore){
+			int batchSize = Math.max(1, MAX_TRANSACTION_OPS / (4 + serverUrls.size()));
+			for(int i = 0; i < services.size(); i += batchSize){
+				deployBatch(domain,services.subList(i, Math.min(services.size(), i + batchSize)));
 			}
+			return;
+		}
+		
+		StoreTransaction tx = new StoreTransaction();
+		List<ServiceDesc> pending = new ArrayList<ServiceDesc>();
+		int i = 0;
+		try{
+			for(; i < services.size(); i ++){
+				ServiceDesc service = services.get(i);
+				String beanName = service.getId();
+				String servicePath = buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain , "/" , beanName);
+				boolean overwrite = true;//service.getProperty("master", boolean.class,false);
+	
+				deployServiceNode(beanName,servicePath,service.desc(),overwrite);
+				appendProviderUrls(tx,service);
+				pending.add(service);
+				if(tx.size() >= MAX_TRANSACTION_OPS){
+					commitProviderUrls(tx,pending);
+					tx = new StoreTransaction();
+				}
+			}
+			commitProviderUrls(tx,pending);
+		}
+		catch(StoreException e){
+			requeue(services.subList(i, services.size()),pending);
+			throw new RegistryException(e);
+		}
+		catch(IOException e){
+			requeue(services.subList(i, services.size()),pending);
+			throw new RegistryException(e);
+		}
+	}
+	
+	/**
+	 * service data,routing node and providers of every service are read at once,the stale ephemerals
+	 * deleted at once,then a single transaction creates or updates all of them.
+	 * a service whose reads fail goes back to uploadQueue without holding up the others.
+	 */
+	private void deployBatch(String domain,List<ServiceDesc> batch){
+		if(batch.isEmpty()){
+			return;
+		}
+		AsyncStore as = (AsyncStore)store;
+		int size = batch.size();
+		List<ListenableFuture<byte[]>> datas = new ArrayList<ListenableFuture<byte[]>>(size);
+		List<ListenableFuture<Boolean>> routings = new ArrayList<ListenableFuture<Boolean>>(size);
+		List<ListenableFuture<List<String>>> children = new ArrayList<ListenableFuture<List<String>>>(size);
+		for(ServiceDesc service : batch){
+			String servicePath = buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain , "/" , service.getId());
+			datas.add(as.getDataAsync(servicePath, null));
+			routings.add(as.isPathExistAsync(buildPathStr(servicePath , "/" , SERVICE_ROUTING), null));
+			children.add(as.getChildrenAsync(providerUrlsRootOf(service), null));
+		}
+		
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DEPLOY_TIMEOUT_SECONDS);
+		StoreTransaction tx = new StoreTransaction();
+		List<ServiceDesc> pending = new ArrayList<ServiceDesc>(size);
+		List<ListenableFuture<Void>> deletes = new ArrayList<ListenableFuture<Void>>();
+		for(int i = 0; i < size; i ++){
+			ServiceDesc service = batch.get(i);
 			String beanName = service.getId();
-			String serviceDesc = service.desc();
-			boolean overwrite = true;//service.getProperty("master", boolean.class,false);
-
-			deployService(domain,beanName,serviceDesc,overwrite);
-			deployProviderUrl(service);
-			
+			String servicePath = buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain , "/" , beanName);
+			try{
+				byte[] data = awaitRead(datas.get(i),deadline);
+				boolean overwrite = true;//service.getProperty("master", boolean.class,false);
+				StoreTransaction serviceTx = new StoreTransaction();
+				appendServiceNode(serviceTx,beanName,servicePath,service.desc(),overwrite,data,
+						data == null || Boolean.TRUE.equals(awaitRead(routings.get(i),deadline)));
+				List<String> existed = data == null ? Collections.<String>emptyList() : awaitRead(children.get(i),deadline);
+				List<String> stale = appendProviderUrls(serviceTx,providerUrlsRootOf(service),existed);
+				tx.append(serviceTx);
+				for(String path : stale){
+					deletes.add(as.deleteAsync(path));
+				}
+				pending.add(service);
+			}
+			catch(IllegalStateException e){
+				logger.error("service[" + beanName + "] deploy failed.",e);
+			}
+			catch(Exception e){
+				logger.error("service[" + beanName + "] deploy failed,requeued:" + e.getMessage());
+				uploadQueue.offer(service);
+				if(e instanceof InterruptedException){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		for(ListenableFuture<Void> delete : deletes){
+			try{
+				awaitRead(delete,deadline);
+			}
+			catch(Exception e){
+				logger.warn("delete stale provider url failed:" + e.getMessage());
+			}
+		}
+		commitProviderUrls(tx,pending);
+	}
+	
+	/**
+	 * the result of an async read,null when the path does not exist.
+	 */
+	private static <T> T awaitRead(Future<T> f,long deadline) throws Exception{
+		try{
+			return f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		catch(TimeoutException e){
+			f.cancel(true);
+			throw e;
+		}
+		catch(ExecutionException e){
+			if(e.getCause() instanceof StoreException && ((StoreException)e.getCause()).isPathNotExist()){
+				return null;
+			}
+			if(e.getCause() instanceof Exception){
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * remaining starts with the service that failed.
+	 */
+	private void requeue(List<ServiceDesc> remaining,List<ServiceDesc> pending){
+		uploadQueue.addAll(pending);
+		uploadQueue.addAll(remaining);
+		pending.clear();
+	}
+	
+	/**
+	 * a failed batch is retried service by service with sync calls,those still failing go back to uploadQueue.
+	 */
+	private void commitProviderUrls(StoreTransaction tx,List<ServiceDesc> pending){
+		if(pending.isEmpty()){
+			return;
+		}
+		try{
+			commit(tx);
+			for(ServiceDesc s : pending){
+				onProviderUrlDeployed(s);
+			}
+		}
+		catch(StoreException e){
+			logger.warn("deploy of " + pending.size() + " services in one transaction failed,retry one by one:" + e.getMessage());
+			String domain = AppDomainContext.getName();
+			for(ServiceDesc s : pending){
+				try{
+					String servicePath = buildPathStr(StoreConstants.SERVICES_HOME , "/" , domain , "/" , s.getId());
+					deployServiceNode(s.getId(),servicePath,s.desc(),true);
+					StoreTransaction single = new StoreTransaction();
+					appendProviderUrls(single,s);
+					commit(single);
+					onProviderUrlDeployed(s);
+				}
+				catch(StoreException ex){
+					logger.error("service[" + s.getId() + "] deploy failed,requeued.",ex);
+					uploadQueue.offer(s);
+				}
+				catch(IOException ex){
+					logger.error("service[" + s.getId() + "] deploy failed,requeued.",ex);
+					uploadQueue.offer(s);
+				}
+			}
 		}
+		pending.clear();
 	}
 	
 	
@@ -574,6 +1766,7 @@ public class DefaultServiceRegistry extends AbstractServiceRegistry implements S
 		}
 		
 		logger.info("registry is up,connected to server[" + store.getServerAddress() + "]");
+		connectZoneStores();
 	}
 	
 	private String buildPathStr(String ...strings){
@@ -0,0 +1,119 @@
+package ctd.net.rpc.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * deflaters and inflaters are pooled rather than kept per thread,with virtual threads a thread local
+ * one would be created for every task and hold its native memory until collected.
+ * empty input maps to empty output in both directions.
+ */
+public class DeflateCompressionCodec implements CompressionCodec {
+	private static final int BUFFER_SIZE = 8192;
+	private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+	
+	private final byte id;
+	private final String name;
+	private final int level;
+	
+	private final ArrayBlockingQueue<Compressor> compressors = new ArrayBlockingQueue<Compressor>(POOL_SIZE);
+	private final ArrayBlockingQueue<Decompressor> decompressors = new ArrayBlockingQueue<Decompressor>(POOL_SIZE);
+	
+	public DeflateCompressionCodec(byte id,String name,int level){
+		this.id = id;
+		this.name = name;
+		this.level = level;
+	}
+	
+	@Override
+	public byte getId() {
+		return id;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public byte[] compress(byte[] data, int offset, int length) throws IOException {
+		if(length == 0){
+			return new byte[0];
+		}
+		Compressor c = compressors.poll();
+		if(c == null){
+			c = new Compressor(level);
+		}
+		Deflater deflater = c.deflater;
+		byte[] buf = c.buf;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 2));
+		try{
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+			while(!deflater.finished()){
+				int count = deflater.deflate(buf);
+				out.write(buf, 0, count);
+			}
+			return out.toByteArray();
+		}
+		finally{
+			deflater.reset();
+			if(!compressors.offer(c)){
+				deflater.end();
+			}
+		}
+	}
+
+	@Override
+	public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+		if(length == 0){
+			return new byte[0];
+		}
+		Decompressor d = decompressors.poll();
+		if(d == null){
+			d = new Decompressor();
+		}
+		Inflater inflater = d.inflater;
+		byte[] buf = d.buf;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length * 2));
+		try{
+			inflater.setInput(data, offset, length);
+			while(!inflater.finished()){
+				int count = inflater.inflate(buf);
+				if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+					throw new IOException("codec[" + name + "] truncated compressed data.");
+				}
+				out.write(buf, 0, count);
+			}
+			return out.toByteArray();
+		}
+		catch(DataFormatException e){
+			throw new IOException("codec[" + name + "] invalid compressed data.",e);
+		}
+		finally{
+			inflater.reset();
+			if(!decompressors.offer(d)){
+				inflater.end();
+			}
+		}
+	}
+	
+	private static final class Compressor {
+		final Deflater deflater;
+		final byte[] buf = new byte[BUFFER_SIZE];
+		
+		Compressor(int level){
+			deflater = new Deflater(level,true);
+		}
+	}
+	
+	private static final class Decompressor {
+		final Inflater inflater = new Inflater(true);
+		final byte[] buf = new byte[BUFFER_SIZE];
+	}
+
+}
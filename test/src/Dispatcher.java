@@ -1,17 +1,32 @@
 package ctd.net.rpc.server;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import ctd.net.rpc.Invocation;
+import ctd.net.rpc.Payload;
 import ctd.net.rpc.Result;
 import ctd.net.rpc.beans.ServiceBean;
+import ctd.net.rpc.compression.PayloadCompression;
 import ctd.net.rpc.desc.support.MethodDesc;
+import ctd.net.rpc.json.parser.JSONRequestParser;
 import ctd.net.rpc.registry.ServiceRegistry;
 import ctd.spring.AppDomainContext;
-import ctd.util.context.Context;
-import ctd.util.context.ContextUtils;
+import ctd.util.context.InvocationContext;
 
 public class Dispatcher {
 	private static final ServiceRegistry registry = AppDomainContext.getRegistry();
 	private static Dispatcher instance;
+	private static final int IDLE_CHECK_MILLIS = 20;
+	private final ConcurrentHashMap<FlightKey, FutureTask<Object>> flights = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, AtomicInteger> beanInFlights = new ConcurrentHashMap<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
 	private DispatcherFilter filter;
 	
 	public Dispatcher(){
@@ -28,16 +43,26 @@ public class Dispatcher {
 	public Result invoke(Invocation invocation)  {
 		
 		Result result = null;
+		InvocationContext prevContext = null;
+		String beanName = invocation.getBeanName();
+		AtomicInteger beanInFlight = null;
+		inFlight.incrementAndGet();
 		try{
 			
-			String beanName = invocation.getBeanName();
 			if(filter != null)
 				filter.before(invocation);
 			ServiceBean<?> service = registry.findLocalServiceBean(beanName);
+			if(service != null){
+				beanInFlight = inFlightOf(beanName);
+				beanInFlight.incrementAndGet();
+			}
 			String methodDesc = invocation.getMethodDesc();
 			Object[] parameters = invocation.getParameters();
+			if(invocation.getPayloadType() == Payload.PAYLOAD_TYPE_JSON && isPassThrough(parameters)){
+				parameters = JSONRequestParser.parseParameters(service.getMethodByDesc(methodDesc), (ByteBuffer)parameters[0]);
+			}
 			
-			ContextUtils.put(Context.RPC_INVOKE_HEADERS, invocation.getAllHeaders());
+			prevContext = InvocationContext.attach(invocation.getAllHeaders());
 			result = invoke(service,methodDesc,parameters);
 			result.setPayloadType(invocation.getPayloadType());
 			
@@ -68,19 +93,66 @@ public class Dispatcher {
 					result.setException(e);
 				};
 			}
-			ContextUtils.remove(Context.RPC_INVOKE_HEADERS);
+			InvocationContext.restore(prevContext);
+			if(beanInFlight != null){
+				beanInFlight.decrementAndGet();
+			}
+			inFlight.decrementAndGet();
 		}
 		result.setCorrelationId(invocation.getCorrelationId());
 		return result;
 	}
 	
+	/**
+	 * only for beans deployed here,so unknown names sent by clients do not grow the map.
+	 */
+	private AtomicInteger inFlightOf(String beanName){
+		AtomicInteger count = beanInFlights.get(beanName);
+		if(count == null){
+			count = new AtomicInteger();
+			AtomicInteger old = beanInFlights.putIfAbsent(beanName, count);
+			if(old != null){
+				count = old;
+			}
+		}
+		return count;
+	}
+	
+	public int getInFlight(){
+		return inFlight.get();
+	}
+	
+	public int getInFlight(String beanName){
+		AtomicInteger count = beanInFlights.get(beanName);
+		return count == null ? 0 : count.get();
+	}
+	
+	/**
+	 * waits until no invocation of beanName (of any bean when null) is in flight,
+	 * false when still busy after timeout.
+	 */
+	public boolean awaitIdle(String beanName,long timeout,TimeUnit unit) throws InterruptedException{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while((beanName == null ? getInFlight() : getInFlight(beanName)) > 0){
+			if(System.nanoTime() >= deadline){
+				return false;
+			}
+			TimeUnit.MILLISECONDS.sleep(IDLE_CHECK_MILLIS);
+		}
+		return true;
+	}
+	
 	public Result invoke(ServiceBean<?> service,String methodDesc, Object[] parameters){
 		Result result = new Result();
 		try{
 			MethodDesc method = service.getMethodByDesc(methodDesc);
-			result.setValue(method.invoke(service.getObject(), parameters));
-			result.setCompression(method.getOutboundCompression());
-			method.getOutboundCompression();
+			if(method.isSingleFlight()){
+				result.setValue(invokeSingleFlight(service.getObject(),method,parameters));
+			}
+			else{
+				result.setValue(method.invoke(service.getObject(), parameters));
+			}
+			result.setCompression(PayloadCompression.select(method.getOutboundCompression(), method, PayloadCompression.sizeOf(result.getValue())));
 		}
 		catch (Throwable t) {
 			Throwable cause = t.getCause();
@@ -94,8 +166,82 @@ public class Dispatcher {
 		return result;
 	}
 	
+	private static boolean isPassThrough(Object[] parameters){
+		return parameters != null && parameters.length == 1 && parameters[0] instanceof ByteBuffer;
+	}
+	
+	private Object invokeSingleFlight(final Object bean,final MethodDesc method,final Object[] parameters) throws Throwable{
+		FlightKey key = new FlightKey(method,parameters,flightContext(method));
+		FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>(){
+			@Override
+			public Object call() throws Exception {
+				return method.invoke(bean, parameters);
+			}
+		});
+		FutureTask<Object> flight = flights.putIfAbsent(key, task);
+		if(flight == null){
+			flight = task;
+			try{
+				task.run();
+			}
+			finally{
+				flights.remove(key, task);
+			}
+		}
+		try{
+			return flight.get();
+		}
+		catch(ExecutionException e){
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * the invoke headers the flight key compares,all of them unless the method names its key headers.
+	 */
+	private static Object[] flightContext(MethodDesc method){
+		InvocationContext ctx = InvocationContext.capture();
+		String[] names = method.getSingleFlightHeaders();
+		if(names == null){
+			return new Object[]{ctx.getHeaders()};
+		}
+		Object[] values = new Object[names.length];
+		for(int i = 0; i < names.length; i ++){
+			values[i] = ctx.get(names[i]);
+		}
+		return values;
+	}
+	
 	public void setFilter(DispatcherFilter filter){
 		this.filter = filter;
 	}
 
+	private static final class FlightKey {
+		private final MethodDesc method;
+		private final Object[] parameters;
+		private final Object[] context;
+		private final int hash;
+		
+		FlightKey(MethodDesc method,Object[] parameters,Object[] context){
+			this.method = method;
+			this.parameters = parameters;
+			this.context = context;
+			this.hash = 31 * (31 * System.identityHashCode(method) + Arrays.deepHashCode(parameters)) + Arrays.deepHashCode(context);
+		}
+		
+		@Override
+		public int hashCode(){
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof FlightKey)){
+				return false;
+			}
+			FlightKey other = (FlightKey)o;
+			return method == other.method && Arrays.deepEquals(parameters, other.parameters) && Arrays.deepEquals(context, other.context);
+		}
+	}
+
 }
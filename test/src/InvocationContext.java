@@ -0,0 +1,184 @@
+package ctd.util.context;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * invoke headers of the current invocation,one immutable object per thread instead of entries in
+ * the {@link ContextUtils} map.changes copy the headers and never touch a context other threads
+ * may hold,so capture() can be handed to async tasks as is.
+ * without an attached context the headers old code put in ContextUtils RPC_INVOKE_HEADERS are used.
+ * -Dctd.rpc.legacyContext=true mirrors attached headers there for old readers,restore puts back what
+ * was there before instead of dropping it.
+ * FROM_DOMAIN is read once into a slot,every downstream call checks it.
+ */
+public final class InvocationContext {
+	private static final boolean LEGACY = Boolean.getBoolean("ctd.rpc.legacyContext");
+	private static final ThreadLocal<InvocationContext> current = new ThreadLocal<InvocationContext>();
+	public static final InvocationContext EMPTY = new InvocationContext(null, false);
+	
+	private final Map<String,Object> headers;
+	private final Object fromDomain;
+	private final boolean legacy;
+	
+	private InvocationContext(Map<String,Object> headers){
+		this(headers, false);
+	}
+	
+	private InvocationContext(Map<String,Object> headers,boolean legacy){
+		this.headers = headers;
+		this.fromDomain = headers == null ? null : headers.get(Context.FROM_DOMAIN);
+		this.legacy = legacy;
+	}
+	
+	public static InvocationContext capture(){
+		InvocationContext ctx = current.get();
+		if(ctx != null){
+			return ctx;
+		}
+		Map<String,Object> headers = legacyHeaders();
+		return headers == null ? EMPTY : new InvocationContext(headers);
+	}
+	
+	public static Map<String,Object> currentHeaders(){
+		InvocationContext ctx = current.get();
+		if(ctx != null){
+			return ctx.headers;
+		}
+		return legacyHeaders();
+	}
+	
+	/**
+	 * FROM_DOMAIN of the headers,taken from the slot when they are the attached ones.
+	 */
+	public static Object fromDomainOf(Map<String,Object> headers){
+		if(headers == null){
+			return null;
+		}
+		InvocationContext ctx = current.get();
+		if(ctx != null && ctx.headers == headers){
+			return ctx.fromDomain;
+		}
+		return headers.get(Context.FROM_DOMAIN);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Map<String,Object> legacyHeaders(){
+		if(ContextUtils.hasKey(Context.RPC_INVOKE_HEADERS)){
+			return (Map<String, Object>) ContextUtils.get(Context.RPC_INVOKE_HEADERS);
+		}
+		return null;
+	}
+	
+	/**
+	 * the headers are taken as they are and must not be changed afterwards.
+	 * @return the previous context,to be given back to {@link #restore(InvocationContext)}
+	 */
+	public static InvocationContext attach(Map<String,Object> headers){
+		return (headers == null ? EMPTY : new InvocationContext(headers)).attach();
+	}
+	
+	public InvocationContext attach(){
+		InvocationContext prev = current.get();
+		if(LEGACY && prev == null){
+			Map<String,Object> legacyHeaders = legacyHeaders();
+			if(legacyHeaders != null){
+				prev = new InvocationContext(legacyHeaders, true);
+			}
+		}
+		if(this == EMPTY){
+			current.remove();
+		}
+		else{
+			current.set(this);
+		}
+		if(LEGACY){
+			if(headers == null){
+				ContextUtils.remove(Context.RPC_INVOKE_HEADERS);
+			}
+			else{
+				ContextUtils.put(Context.RPC_INVOKE_HEADERS, headers);
+			}
+		}
+		return prev;
+	}
+	
+	public static void restore(InvocationContext prev){
+		if(prev == null || prev == EMPTY){
+			current.remove();
+			if(LEGACY){
+				ContextUtils.remove(Context.RPC_INVOKE_HEADERS);
+			}
+		}
+		else if(prev.legacy){
+			current.remove();
+			if(LEGACY){
+				ContextUtils.put(Context.RPC_INVOKE_HEADERS, prev.headers);
+			}
+		}
+		else{
+			prev.attach();
+		}
+	}
+	
+	public boolean isEmpty(){
+		return headers == null || headers.isEmpty();
+	}
+	
+	public Map<String,Object> getHeaders(){
+		return headers;
+	}
+	
+	public Object get(String name){
+		return headers == null ? null : headers.get(name);
+	}
+	
+	/**
+	 * a new context with the header set,this one is left unchanged.
+	 */
+	public InvocationContext with(String name,Object value){
+		Map<String,Object> copy = headers == null ? new HashMap<String,Object>() : new HashMap<String,Object>(headers);
+		copy.put(name, value);
+		return new InvocationContext(copy);
+	}
+	
+	/**
+	 * runs the task within this context on whatever thread executes it.
+	 */
+	public <T> Callable<T> wrap(final Callable<T> task){
+		if(this == EMPTY){
+			return task;
+		}
+		return new Callable<T>(){
+			@Override
+			public T call() throws Exception {
+				InvocationContext prev = attach();
+				try{
+					return task.call();
+				}
+				finally{
+					restore(prev);
+				}
+			}
+		};
+	}
+	
+	public Runnable wrap(final Runnable task){
+		if(this == EMPTY){
+			return task;
+		}
+		return new Runnable(){
+			@Override
+			public void run() {
+				InvocationContext prev = attach();
+				try{
+					task.run();
+				}
+				finally{
+					restore(prev);
+				}
+			}
+		};
+	}
+}
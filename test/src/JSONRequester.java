@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -63,8 +64,12 @@ public class JSONRequestParser {
 	}
 	
 	public static JSONRequestBean parse(byte[] bytes) {
+		return parse(bytes,0,bytes.length);
+	}
+	
+	public static JSONRequestBean parse(byte[] bytes,int offset,int length) {
 		try{
-			JsonParser jp = jf.createParser(bytes);
+			JsonParser jp = jf.createParser(bytes,offset,length);
 			return parse(jp);
 		}
 		catch(JsonParseException e){
@@ -101,9 +106,29 @@ public class JSONRequestParser {
 		}
 	}
 	
+	/**
+	 * parses the remaining bytes of a (pooled) buffer without copying heap buffers,
+	 * the buffer position is not changed.
+	 */
+	public static JSONRequestBean parse(ByteBuffer buffer) {
+		try{
+			return parse(createParser(buffer));
+		}
+		catch(JsonParseException e){
+			throw new JSONRequestParseException("json parse error.",e);
+		} 
+		catch (IOException e) {
+			throw new JSONRequestParseException("json parse io error.",e);
+		}
+	}
+	
 	public static Object[] parseParameters(MethodDesc methodDesc,byte[] bytes){
+		return parseParameters(methodDesc,bytes,0,bytes.length);
+	}
+	
+	public static Object[] parseParameters(MethodDesc methodDesc,byte[] bytes,int offset,int length){
 		try{
-			JsonParser jp = jf.createParser(bytes);
+			JsonParser jp = jf.createParser(bytes,offset,length);
 			return parseBody(methodDesc,jp);
 		}
 		catch(JsonParseException e){
@@ -114,6 +139,25 @@ public class JSONRequestParser {
 		}
 	}
 	
+	public static Object[] parseParameters(MethodDesc methodDesc,ByteBuffer buffer){
+		try{
+			return parseBody(methodDesc,createParser(buffer));
+		}
+		catch(JsonParseException e){
+			throw new JSONRequestParseException("json parse error.",e);
+		} 
+		catch (IOException e) {
+			throw new JSONRequestParseException("json parse io error.",e);
+		}
+	}
+	
+	private static JsonParser createParser(ByteBuffer buffer) throws IOException{
+		if(buffer.hasArray()){
+			return jf.createParser(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		return jf.createParser(new ByteBufferInputStream(buffer.duplicate()));
+	}
+	
 	private static JSONRequestBean parse(JsonParser jp){
 		try{
 			if (jp.nextToken() != JsonToken.START_OBJECT) {
@@ -451,5 +495,35 @@ public class JSONRequestParser {
 		} 
 	}
 	
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		
+		ByteBufferInputStream(ByteBuffer buffer){
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			if(!buffer.hasRemaining()){
+				return -1;
+			}
+			return buffer.get() & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(!buffer.hasRemaining()){
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
 	
 }
@@ -23,7 +23,10 @@ public class MethodDesc extends AbstractDescription {
 	private Method method;
 	private byte inboundCompression;
 	private byte outboundCompression;
+	private int compressionThreshold = 512;
 	private int timeout = 20;
+	private boolean singleFlight;
+	private String[] singleFlightHeaders;
 
 	public MethodDesc() {
 	}
@@ -218,6 +221,14 @@ public class MethodDesc extends AbstractDescription {
 		this.outboundCompression = outboundCompression;
 	}
 
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
 	public int getTimeout() {
 		return timeout;
 	}
@@ -225,4 +236,29 @@ public class MethodDesc extends AbstractDescription {
 	public void setTimeout(int timeout) {
 		this.timeout = timeout;
 	}
+
+	/**
+	 * when enabled, concurrent invocations with equal parameters and equal invoke headers share
+	 * one execution of the method and its return value. the method runs under the invocation
+	 * context of the first (leader) invocation, the others only get its result.
+	 */
+	public boolean isSingleFlight() {
+		return singleFlight;
+	}
+
+	public void setSingleFlight(boolean singleFlight) {
+		this.singleFlight = singleFlight;
+	}
+
+	/**
+	 * headers that must match for invocations to share a flight, null compares all headers.
+	 * only narrow this to headers the result does not depend on beyond the listed ones.
+	 */
+	public String[] getSingleFlightHeaders() {
+		return singleFlightHeaders;
+	}
+
+	public void setSingleFlightHeaders(String[] singleFlightHeaders) {
+		this.singleFlightHeaders = singleFlightHeaders;
+	}
 }
@@ -0,0 +1,37 @@
+package ctd.net.rpc.compression;
+
+import ctd.net.rpc.desc.support.MethodDesc;
+
+/**
+ * compression ids are the ones MethodDesc carries and the transport writes to the frame,
+ * this class never picks an id other than the configured one: below the threshold it sends NONE.
+ */
+public class PayloadCompression {
+	public static final byte NONE = 0;
+	
+	public static final int UNKNOWN_SIZE = -1;
+	
+	public static byte select(byte compression,MethodDesc method,int size){
+		if(compression == NONE){
+			return NONE;
+		}
+		if(size != UNKNOWN_SIZE && size < method.getCompressionThreshold()){
+			return NONE;
+		}
+		return compression;
+	}
+	
+	public static int sizeOf(Object[] parameters){
+		if(parameters != null && parameters.length == 1){
+			return sizeOf(parameters[0]);
+		}
+		return UNKNOWN_SIZE;
+	}
+	
+	public static int sizeOf(Object value){
+		if(value instanceof byte[]){
+			return ((byte[])value).length;
+		}
+		return UNKNOWN_SIZE;
+	}
+}
@@ -0,0 +1,255 @@
+package ctd.net.rpc.desc.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * immutable array of the healthy providers of a service,replaced as a whole on every
+ * membership or health change so that readers never lock or see a half applied update.
+ * preferred holds the local zone providers,or every healthy one once local capacity or health drops,
+ * split into weighted groups by the {@link RoutingRules} of the service.
+ */
+public final class ProviderSnapshot {
+	private static final ConcurrentHashMap<String, ProviderSnapshot> snapshots = new ConcurrentHashMap<>();
+	private static final int MIN_LOCAL_PROVIDERS = 1;
+	private static final double MIN_LOCAL_HEALTHY_RATIO = 0.5;
+	private static final int LOCK_STRIPES = 64;
+	private static final Object[] locks = new Object[LOCK_STRIPES];
+	
+	static{
+		for(int i = 0; i < LOCK_STRIPES; i ++){
+			locks[i] = new Object();
+		}
+	}
+	
+	private final ProviderUrl[] urls;
+	private final Group preferred;
+	private final Map<String,Group> tagged;
+	private final RoutingRules rules;
+	
+	private ProviderSnapshot(ProviderUrl[] urls,Group preferred,Map<String,Group> tagged,RoutingRules rules){
+		this.urls = urls;
+		this.preferred = preferred;
+		this.tagged = tagged;
+		this.rules = rules;
+	}
+	
+	public static ProviderSnapshot of(String beanName){
+		return snapshots.get(beanName);
+	}
+	
+	/**
+	 * client,watch and registry threads publish concurrently,reading the providers and
+	 * replacing the snapshot under one per-service lock keeps a snapshot computed before
+	 * a membership change from overwriting the one computed after it.
+	 */
+	public static void publish(ServiceDesc service){
+		synchronized(locks[(service.getId().hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES]){
+			doPublish(service);
+		}
+	}
+	
+	private static void doPublish(ServiceDesc service){
+		List<ProviderUrl> healthy = new ArrayList<ProviderUrl>();
+		List<ProviderUrl> local = new ArrayList<ProviderUrl>();
+		int localTotal = 0;
+		for(ProviderUrl url : service.providerUrls()){
+			boolean isLocal = ProviderZones.isLocal(url);
+			if(isLocal){
+				localTotal ++;
+			}
+			if(!url.isLastConnectFailed()){
+				healthy.add(url);
+				if(isLocal){
+					local.add(url);
+				}
+			}
+		}
+		List<ProviderUrl> candidates = healthy;
+		if(local.size() != healthy.size() && local.size() >= MIN_LOCAL_PROVIDERS && local.size() >= localTotal * MIN_LOCAL_HEALTHY_RATIO){
+			candidates = local;
+		}
+		
+		RoutingRules rules = RoutingRules.of(service.getId());
+		Map<String,Group> tagged = Collections.emptyMap();
+		List<ProviderUrl> untagged = candidates;
+		if(!rules.isEmpty()){
+			Map<String,List<ProviderUrl>> byTag = new HashMap<String,List<ProviderUrl>>();
+			for(ProviderUrl url : healthy){
+				String tag = rules.tagOf(url);
+				if(tag == null){
+					continue;
+				}
+				List<ProviderUrl> ls = byTag.get(tag);
+				if(ls == null){
+					ls = new ArrayList<ProviderUrl>();
+					byTag.put(tag, ls);
+				}
+				ls.add(url);
+			}
+			if(!byTag.isEmpty()){
+				tagged = new HashMap<String,Group>();
+				for(Map.Entry<String,List<ProviderUrl>> e : byTag.entrySet()){
+					tagged.put(e.getKey(), Group.of(e.getValue(),rules));
+				}
+				untagged = new ArrayList<ProviderUrl>();
+				for(ProviderUrl url : candidates){
+					if(rules.tagOf(url) == null){
+						untagged.add(url);
+					}
+				}
+				if(untagged.isEmpty()){
+					untagged = candidates;
+				}
+			}
+		}
+		ProviderUrl[] urls = healthy.toArray(new ProviderUrl[healthy.size()]);
+		snapshots.put(service.getId(), new ProviderSnapshot(urls,Group.of(untagged,rules),tagged,rules));
+	}
+	
+	public static void remove(String beanName){
+		snapshots.remove(beanName);
+	}
+	
+	public int size(){
+		return urls.length;
+	}
+	
+	public boolean isEmpty(){
+		return urls.length == 0;
+	}
+	
+	public ProviderUrl get(int index){
+		return urls[index];
+	}
+	
+	/**
+	 * the group an invocation with these headers is routed to,untagged providers unless a
+	 * route matches a tag that has healthy providers.
+	 */
+	public Group route(Map<String,Object> headers){
+		String tag = rules.routeOf(headers);
+		if(tag != null){
+			Group group = tagged.get(tag);
+			if(group != null){
+				return group;
+			}
+		}
+		return preferred;
+	}
+	
+	/**
+	 * providers laid out on [0,weight),uniform ones skip the bounds search.
+	 * weight 0 providers are left out unless every provider of the group has weight 0.
+	 */
+	public static final class Group {
+		private final ProviderUrl[] urls;
+		private final int[] bounds;
+		private final int weight;
+		private final long[] current;
+		
+		private Group(ProviderUrl[] urls,int[] bounds,int weight){
+			this.urls = urls;
+			this.bounds = bounds;
+			this.weight = weight;
+			this.current = bounds == null ? null : new long[bounds.length];
+		}
+		
+		static Group of(List<ProviderUrl> ls,RoutingRules rules){
+			List<ProviderUrl> urls = new ArrayList<ProviderUrl>(ls.size());
+			List<Integer> weights = new ArrayList<Integer>(ls.size());
+			boolean uniform = true;
+			for(ProviderUrl url : ls){
+				int w = rules.weightOf(url);
+				if(w == 0){
+					continue;
+				}
+				if(!weights.isEmpty() && weights.get(0) != w){
+					uniform = false;
+				}
+				urls.add(url);
+				weights.add(w);
+			}
+			if(urls.isEmpty() || uniform){
+				List<ProviderUrl> all = urls.isEmpty() ? ls : urls;
+				return new Group(all.toArray(new ProviderUrl[all.size()]),null,all.size());
+			}
+			int[] bounds = new int[weights.size()];
+			long total = 0;
+			for(int i = 0; i < bounds.length; i ++){
+				total = Math.min(Integer.MAX_VALUE, total + weights.get(i));
+				bounds[i] = (int)total;
+			}
+			return new Group(urls.toArray(new ProviderUrl[urls.size()]),bounds,(int)total);
+		}
+		
+		public int size(){
+			return urls.length;
+		}
+		
+		public ProviderUrl get(int index){
+			return urls[index];
+		}
+		
+		public int weight(){
+			return weight;
+		}
+		
+		public boolean isUniform(){
+			return bounds == null;
+		}
+		
+		public int weightAt(int index){
+			if(bounds == null){
+				return 1;
+			}
+			return index == 0 ? bounds[0] : bounds[index] - bounds[index - 1];
+		}
+		
+		/**
+		 * smooth weighted round robin as nginx does it,every provider gains its weight and the
+		 * highest one is picked and lowered by the total,so heavy providers are interleaved with
+		 * light ones instead of taking their whole share in a row.
+		 * the state lives with the group and starts over with the next snapshot.
+		 * only for weighted groups,uniform ones are plain round robin.
+		 */
+		public ProviderUrl nextSmooth(){
+			synchronized(current){
+				int best = 0;
+				for(int i = 0; i < current.length; i ++){
+					current[i] += weightAt(i);
+					if(current[i] > current[best]){
+						best = i;
+					}
+				}
+				current[best] -= weight;
+				return urls[best];
+			}
+		}
+		
+		/**
+		 * point in [0,weight).
+		 */
+		public ProviderUrl at(int point){
+			if(bounds == null){
+				return urls[point];
+			}
+			int lo = 0;
+			int hi = bounds.length - 1;
+			while(lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if(bounds[mid] > point){
+					hi = mid;
+				}
+				else{
+					lo = mid + 1;
+				}
+			}
+			return urls[lo];
+		}
+	}
+}
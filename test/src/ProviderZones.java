@@ -0,0 +1,48 @@
+package ctd.net.rpc.desc.support;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * zone tags of providers learned from federated registries,untagged providers are local.
+ * tags are held per service and replaced as a whole on every provider update,so they never
+ * outlive the providers or the service they belong to.
+ */
+public class ProviderZones {
+	private static final ConcurrentHashMap<String, Map<String, String>> zones = new ConcurrentHashMap<>();
+	private static volatile String localZone = System.getProperty("ctd.rpc.zone", "");
+	
+	public static String getLocalZone(){
+		return localZone;
+	}
+	
+	public static void setLocalZone(String zone){
+		localZone = zone;
+	}
+	
+	/**
+	 * @param tags encoded url to zone of every remote provider of the service,not changed afterwards
+	 */
+	public static void tag(String beanName,Map<String, String> tags){
+		if(tags.isEmpty()){
+			zones.remove(beanName);
+		}
+		else{
+			zones.put(beanName, tags);
+		}
+	}
+	
+	public static void untag(String beanName){
+		zones.remove(beanName);
+	}
+	
+	public static String zoneOf(ProviderUrl url){
+		Map<String, String> tags = zones.get(url.getBeanName());
+		String zone = tags == null ? null : tags.get(url.getEncodeUrl());
+		return zone == null ? localZone : zone;
+	}
+	
+	public static boolean isLocal(ProviderUrl url){
+		return zoneOf(url).equals(localZone);
+	}
+}
@@ -0,0 +1,12 @@
+package ctd.net.rpc.balance;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class RandomSnapshotBalance extends SnapshotBalance {
+
+	@Override
+	protected int index(int size) {
+		return ThreadLocalRandom.current().nextInt(size);
+	}
+
+}
@@ -0,0 +1,135 @@
+package ctd.net.rpc.registry.support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * on-disk copy of loaded services,one file per service rewritten atomically on change,
+ * used to resolve services while the store is not connected.
+ */
+public class RegistrySnapshot {
+	private static final Logger logger = LoggerFactory.getLogger(RegistrySnapshot.class);
+	private static final int VERSION = 1;
+	private static final String CHARSET = "UTF-8";
+	private static final String SUFFIX = ".svc";
+	
+	private final File dir;
+	
+	public static class Entry {
+		private final String desc;
+		private final List<String> providerUrls;
+		
+		public Entry(String desc,List<String> providerUrls){
+			this.desc = desc;
+			this.providerUrls = providerUrls;
+		}
+
+		public String getDesc() {
+			return desc;
+		}
+
+		public List<String> getProviderUrls() {
+			return providerUrls;
+		}
+	}
+	
+	public RegistrySnapshot(String path){
+		dir = new File(path);
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IllegalStateException("registry snapshot dir[" + path + "] create failed.");
+		}
+	}
+	
+	public void save(String beanName,String desc,List<String> providerUrls){
+		try{
+			File target = fileOf(beanName);
+			File tmp = new File(dir,target.getName() + ".tmp");
+			DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try{
+				os.writeInt(VERSION);
+				writeString(os,desc);
+				os.writeInt(providerUrls.size());
+				for(String url : providerUrls){
+					writeString(os,url);
+				}
+			}
+			finally{
+				os.close();
+			}
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e){
+			logger.warn("service[" + beanName + "] save snapshot failed:" + e.getMessage());
+		}
+	}
+	
+	public Entry load(String beanName){
+		File f = null;
+		try{
+			f = fileOf(beanName);
+			if(!f.isFile()){
+				return null;
+			}
+			DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try{
+				if(is.readInt() != VERSION){
+					return null;
+				}
+				String desc = readString(is);
+				int n = is.readInt();
+				List<String> urls = new ArrayList<String>(n);
+				for(int i = 0; i < n; i ++){
+					urls.add(readString(is));
+				}
+				return new Entry(desc,urls);
+			}
+			finally{
+				is.close();
+			}
+		}
+		catch(IOException e){
+			logger.warn("service[" + beanName + "] load snapshot failed:" + e.getMessage());
+			return null;
+		}
+	}
+	
+	public void remove(String beanName){
+		try{
+			Files.deleteIfExists(fileOf(beanName).toPath());
+		}
+		catch(IOException e){
+			logger.warn("service[" + beanName + "] remove snapshot failed:" + e.getMessage());
+		}
+	}
+	
+	private File fileOf(String beanName) throws UnsupportedEncodingException{
+		return new File(dir,URLEncoder.encode(beanName, CHARSET) + SUFFIX);
+	}
+	
+	private static void writeString(DataOutputStream os,String s) throws IOException{
+		byte[] bytes = s.getBytes(CHARSET);
+		os.writeInt(bytes.length);
+		os.write(bytes);
+	}
+	
+	private static String readString(DataInputStream is) throws IOException{
+		byte[] bytes = new byte[is.readInt()];
+		is.readFully(bytes);
+		return new String(bytes,CHARSET);
+	}
+}
@@ -0,0 +1,38 @@
+package ctd.util.store.support;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * exponential backoff with full jitter,bounded by an overall deadline.
+ */
+public class RetryBackoff {
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final long deadlineMillis;
+	
+	public RetryBackoff(long baseDelayMillis,long maxDelayMillis,long deadlineMillis){
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.deadlineMillis = deadlineMillis;
+	}
+	
+	public long delayMillis(int attempt){
+		long ceiling = baseDelayMillis << Math.min(attempt, 20);
+		if(ceiling <= 0 || ceiling > maxDelayMillis){
+			ceiling = maxDelayMillis;
+		}
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+	
+	/**
+	 * true when a retry scheduled after delayMillis still runs before the deadline.
+	 */
+	public boolean canRetry(long startNanos,long delayMillis){
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis) - startNanos < TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+	}
+	
+	public long getDeadlineMillis(){
+		return deadlineMillis;
+	}
+}
@@ -0,0 +1,32 @@
+package ctd.net.rpc.balance;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ctd.net.rpc.Invocation;
+import ctd.net.rpc.desc.support.ProviderSnapshot;
+import ctd.net.rpc.desc.support.ProviderUrl;
+
+/**
+ * weighted groups take the smooth weighted round robin of the group,uniform ones a shared counter.
+ */
+public class RoundRobinSnapshotBalance extends SnapshotBalance {
+	private final AtomicInteger next = new AtomicInteger();
+	
+	@Override
+	public ProviderUrl select(ProviderSnapshot snapshot,Invocation invocation){
+		if(snapshot == null || snapshot.isEmpty()){
+			return null;
+		}
+		ProviderSnapshot.Group group = snapshot.route(invocation.getHeaders());
+		if(group.isUniform()){
+			return group.get(index(group.size()));
+		}
+		return group.nextSmooth();
+	}
+
+	@Override
+	protected int index(int size) {
+		return (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+	}
+
+}
@@ -0,0 +1,190 @@
+package ctd.net.rpc.desc.support;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * provider weights and tag routes of a service,parsed from the children of its routing node:
+ * <pre>
+ * weight@host:port=n          n &gt;= 0,default 100,0 drains the provider
+ * tag@host:port=tag           tagged providers only get invocations routed to their tag
+ * route@header:value=tag      invocations whose header equals value go to providers tagged tag
+ * </pre>
+ * of several weight rules for one provider the lowest wins,so a drain always takes effect.
+ */
+public final class RoutingRules {
+	private static final Logger logger = LoggerFactory.getLogger(RoutingRules.class);
+	private static final ConcurrentHashMap<String, RoutingRules> rules = new ConcurrentHashMap<>();
+	public static final int DEFAULT_WEIGHT = 100;
+	public static final RoutingRules EMPTY = new RoutingRules(Collections.<String,Integer>emptyMap(),
+			Collections.<String,String>emptyMap(),Collections.<Route>emptyList());
+	
+	private final Map<String,Integer> weights;
+	private final Map<String,String> tags;
+	private final List<Route> routes;
+	private final boolean drained;
+	
+	private RoutingRules(Map<String,Integer> weights,Map<String,String> tags,List<Route> routes){
+		this.weights = weights;
+		this.tags = tags;
+		this.routes = routes;
+		this.drained = weights.containsValue(0);
+	}
+	
+	public static RoutingRules of(String beanName){
+		RoutingRules r = rules.get(beanName);
+		return r == null ? EMPTY : r;
+	}
+	
+	public static void update(String beanName,List<String> ls){
+		if(ls == null || ls.isEmpty()){
+			rules.remove(beanName);
+		}
+		else{
+			rules.put(beanName, parse(ls));
+		}
+	}
+	
+	public static void remove(String beanName){
+		rules.remove(beanName);
+	}
+	
+	/**
+	 * malformed entries are logged and skipped,the rest still apply.
+	 */
+	public static RoutingRules parse(List<String> ls){
+		Map<String,Integer> weights = new HashMap<String,Integer>();
+		Map<String,String> tags = new HashMap<String,String>();
+		List<Route> routes = new ArrayList<Route>();
+		for(String s : ls){
+			int at = s.indexOf('@');
+			int eq = s.lastIndexOf('=');
+			if(at < 0 || eq < at){
+				logger.warn("routing rule[{}] is invaild,ignored.",s);
+				continue;
+			}
+			String type = s.substring(0, at);
+			String target = s.substring(at + 1, eq);
+			String value = s.substring(eq + 1);
+			try{
+				if("weight".equals(type)){
+					int weight = Integer.parseInt(value);
+					if(weight < 0){
+						throw new NumberFormatException(value);
+					}
+					Integer old = weights.get(target);
+					if(old == null || weight < old){
+						weights.put(target, weight);
+					}
+				}
+				else if("tag".equals(type)){
+					tags.put(target, value);
+				}
+				else if("route".equals(type)){
+					int i = target.indexOf(':');
+					if(i < 1){
+						throw new IllegalArgumentException(target);
+					}
+					routes.add(new Route(target.substring(0, i),target.substring(i + 1),value));
+				}
+				else{
+					throw new IllegalArgumentException(type);
+				}
+			}
+			catch(IllegalArgumentException e){
+				logger.warn("routing rule[{}] is invaild,ignored.",s);
+			}
+		}
+		return new RoutingRules(weights,tags,routes);
+	}
+	
+	public boolean isEmpty(){
+		return weights.isEmpty() && tags.isEmpty();
+	}
+	
+	public int weightOf(ProviderUrl url){
+		Integer weight = weights.get(addressOf(url));
+		return weight == null ? DEFAULT_WEIGHT : weight;
+	}
+	
+	public boolean hasDrained(){
+		return drained;
+	}
+	
+	/**
+	 * urls without the drained (weight 0) ones,for selection that does not go through a {@link ProviderSnapshot}.
+	 * all of them when every one is drained,as {@link ProviderSnapshot.Group} does.
+	 */
+	public List<ProviderUrl> withoutDrained(Collection<ProviderUrl> urls){
+		List<ProviderUrl> ls = new ArrayList<ProviderUrl>(urls.size());
+		for(ProviderUrl url : urls){
+			if(weightOf(url) != 0){
+				ls.add(url);
+			}
+		}
+		return ls.isEmpty() ? new ArrayList<ProviderUrl>(urls) : ls;
+	}
+	
+	public String tagOf(ProviderUrl url){
+		return tags.get(addressOf(url));
+	}
+	
+	/**
+	 * the tag of the first route matching the headers,null routes to the untagged providers.
+	 */
+	public String routeOf(Map<String,Object> headers){
+		if(headers == null || routes.isEmpty()){
+			return null;
+		}
+		for(int i = 0; i < routes.size(); i ++){
+			Route route = routes.get(i);
+			Object v = headers.get(route.header);
+			if(v != null && route.value.equals(v.toString())){
+				return route.tag;
+			}
+		}
+		return null;
+	}
+	
+	private String addressOf(ProviderUrl url){
+		if(weights.isEmpty() && tags.isEmpty()){
+			return url.getUrl();
+		}
+		return addressOf(url.getUrl());
+	}
+	
+	/**
+	 * host:port rules refer to.
+	 */
+	public static String addressOf(String url){
+		try {
+			URI uri = new URI(url);
+			return uri.getHost() + ":" + uri.getPort();
+		}
+		catch (URISyntaxException e) {
+			return url;
+		}
+	}
+	
+	private static final class Route {
+		final String header;
+		final String value;
+		final String tag;
+		
+		Route(String header,String value,String tag){
+			this.header = header;
+			this.value = value;
+			this.tag = tag;
+		}
+	}
+}
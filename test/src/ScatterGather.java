@@ -0,0 +1,224 @@
+package ctd.net.rpc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ctd.net.rpc.desc.support.ProviderUrl;
+import ctd.net.rpc.desc.support.RoutingRules;
+import ctd.net.rpc.desc.support.ServiceDesc;
+import ctd.net.rpc.exception.RpcException;
+import ctd.util.concurrent.VirtualThreads;
+import ctd.util.context.InvocationContext;
+
+/**
+ * concurrent fan-out of one method to every provider of a service,or of several calls at once.
+ * providers drained by their routing rules are left out of a broadcast.
+ * one gather keeps at most MAX_IN_FLIGHT calls running and starts the next as one completes,
+ * platform threads of all gathers together are capped at MAX_THREADS.
+ */
+public class ScatterGather {
+	private static final int CORES = Runtime.getRuntime().availableProcessors();
+	private static final int MAX_IN_FLIGHT = Integer.getInteger("ctd.rpc.scatter.maxInFlight", CORES * 4);
+	private static final int MAX_THREADS = Integer.getInteger("ctd.rpc.scatter.maxThreads", CORES * 16);
+	private static final ExecutorService exec = VirtualThreads.newBoundedExecutor("ssdev-rpc-scatter-", MAX_THREADS);
+	
+	public static Results broadcast(ServiceDesc sc,final String methodName,final Object[] parameters,long timeout,boolean partial) throws Exception{
+		final Map<String,Object> headers = InvocationContext.currentHeaders();
+		final String beanName = sc.getId();
+		List<ProviderUrl> urls = RoutingRules.of(beanName).withoutDrained(sc.providerUrls());
+		if(urls.isEmpty()){
+			throw new RpcException(RpcException.SERVICE_OFFLINE,"service[" + beanName + "] is not available.");
+		}
+		List<String> targets = new ArrayList<String>(urls.size());
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(urls.size());
+		for(final ProviderUrl url : urls){
+			targets.add(url.getUrl());
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					return Client.rpcInvokeAt(url, beanName, methodName, parameters, headers);
+				}
+			});
+		}
+		return gather(targets,tasks,timeout,partial);
+	}
+	
+	public static Results invokeAll(List<Call> calls,long timeout,boolean partial) throws Exception{
+		final Map<String,Object> headers = InvocationContext.currentHeaders();
+		List<String> targets = new ArrayList<String>(calls.size());
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(calls.size());
+		for(final Call call : calls){
+			targets.add(call.getBeanName() + "." + call.getMethodName());
+			tasks.add(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					return Client.rpcInvoke(call.getBeanName(), call.getMethodName(), call.getParameters(), headers);
+				}
+			});
+		}
+		return gather(targets,tasks,timeout,partial);
+	}
+	
+	/**
+	 * results are taken in completion order,so without partial the first failure cancels
+	 * the rest as soon as it happens.
+	 */
+	private static Results gather(List<String> targets,List<Callable<Object>> tasks,long timeout,boolean partial) throws Exception{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		ExecutorCompletionService<Object> completion = new ExecutorCompletionService<Object>(exec);
+		Map<Future<Object>,Integer> indexes = new HashMap<Future<Object>,Integer>();
+		int submitted = Math.min(tasks.size(), Math.max(1, MAX_IN_FLIGHT));
+		for(int i = 0; i < submitted; i ++){
+			indexes.put(completion.submit(tasks.get(i)), i);
+		}
+		
+		Response[] responses = new Response[tasks.size()];
+		try{
+			for(int n = 0; n < tasks.size(); n ++){
+				Future<Object> f = completion.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if(f == null){
+					break;
+				}
+				int i = indexes.get(f);
+				Response r = new Response(targets.get(i));
+				try{
+					r.value = f.get();
+				}
+				catch(ExecutionException e){
+					Throwable cause = e.getCause();
+					r.exception = cause instanceof Exception ? (Exception)cause : e;
+				}
+				catch(CancellationException e){
+					r.exception = e;
+				}
+				responses[i] = r;
+				if(r.exception != null && !partial){
+					throw r.exception;
+				}
+				if(submitted < tasks.size()){
+					indexes.put(completion.submit(tasks.get(submitted)), submitted);
+					submitted ++;
+				}
+			}
+			for(int i = 0; i < responses.length; i ++){
+				if(responses[i] == null){
+					Response r = new Response(targets.get(i));
+					r.exception = new TimeoutException("target[" + r.target + "] not responded in " + timeout + "ms.");
+					if(!partial){
+						throw r.exception;
+					}
+					responses[i] = r;
+				}
+			}
+		}
+		finally{
+			for(Future<Object> f : indexes.keySet()){
+				f.cancel(true);
+			}
+		}
+		return new Results(Arrays.asList(responses));
+	}
+	
+	public static class Call {
+		private final String beanName;
+		private final String methodName;
+		private final Object[] parameters;
+		
+		public Call(String beanName,String methodName,Object ...parameters){
+			this.beanName = beanName;
+			this.methodName = methodName;
+			this.parameters = parameters;
+		}
+
+		public String getBeanName() {
+			return beanName;
+		}
+
+		public String getMethodName() {
+			return methodName;
+		}
+
+		public Object[] getParameters() {
+			return parameters;
+		}
+	}
+	
+	public static class Response {
+		private final String target;
+		private Object value;
+		private Exception exception;
+		
+		Response(String target){
+			this.target = target;
+		}
+		
+		public String getTarget() {
+			return target;
+		}
+
+		public Object getValue() {
+			return value;
+		}
+
+		public Exception getException() {
+			return exception;
+		}
+		
+		public boolean isSuccess(){
+			return exception == null;
+		}
+	}
+	
+	public static class Results {
+		private final List<Response> responses;
+		
+		Results(List<Response> responses){
+			this.responses = Collections.unmodifiableList(responses);
+		}
+		
+		public List<Response> getResponses() {
+			return responses;
+		}
+		
+		public List<Object> getValues(){
+			List<Object> values = new ArrayList<Object>(responses.size());
+			for(Response r : responses){
+				if(r.isSuccess()){
+					values.add(r.getValue());
+				}
+			}
+			return values;
+		}
+		
+		public List<Response> getErrors(){
+			List<Response> errors = new ArrayList<Response>();
+			for(Response r : responses){
+				if(!r.isSuccess()){
+					errors.add(r);
+				}
+			}
+			return errors;
+		}
+		
+		public boolean isComplete(){
+			for(Response r : responses){
+				if(!r.isSuccess()){
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package ctd.net.rpc.registry.support;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import com.google.common.hash.Hashing;
+
+import ctd.net.rpc.compression.CompressionCodec;
+import ctd.net.rpc.compression.DeflateCompressionCodec;
+
+/**
+ * versioned binary envelope of a service descriptor stored on the service znode:
+ * magic(2) version(1) flags(1) contentHash(8) payload.
+ * the hash lets deploy skip parsing when the text is unchanged,a differing hash still falls back
+ * to parse and equals so textual-only differences do not rewrite the node.
+ * loading a service parses the descriptor as before,plain legacy descriptors are still read.
+ */
+public class ServiceDescCodec {
+	private static final byte MAGIC_0 = (byte)0xC7;
+	private static final byte MAGIC_1 = (byte)0xD5;
+	private static final byte VERSION = 1;
+	private static final byte FLAG_DEFLATE = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int COMPRESS_THRESHOLD = 512;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final CompressionCodec deflate = new DeflateCompressionCodec(FLAG_DEFLATE, "deflate", Deflater.DEFAULT_COMPRESSION);
+	
+	public static long hash(String desc){
+		return Hashing.murmur3_128().hashBytes(desc.getBytes(CHARSET)).asLong();
+	}
+	
+	public static byte[] encode(String desc) throws IOException{
+		byte[] bytes = desc.getBytes(CHARSET);
+		byte flags = 0;
+		byte[] payload = bytes;
+		if(bytes.length >= COMPRESS_THRESHOLD){
+			payload = deflate.compress(bytes, 0, bytes.length);
+			flags = FLAG_DEFLATE;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		buf.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(flags);
+		buf.putLong(Hashing.murmur3_128().hashBytes(bytes).asLong());
+		buf.put(payload);
+		return buf.array();
+	}
+	
+	public static boolean isEncoded(byte[] data){
+		return data != null && data.length >= HEADER_SIZE && data[0] == MAGIC_0 && data[1] == MAGIC_1;
+	}
+	
+	/**
+	 * the content hash read from the header,computed from the text for legacy data.
+	 */
+	public static long readHash(byte[] data){
+		if(isEncoded(data)){
+			return ByteBuffer.wrap(data, 4, 8).getLong();
+		}
+		return hash(new String(data,CHARSET));
+	}
+	
+	public static String decode(byte[] data) throws IOException{
+		if(!isEncoded(data)){
+			return new String(data,CHARSET);
+		}
+		if(data[2] != VERSION){
+			throw new IOException("unsupported service desc version[" + data[2] + "]");
+		}
+		byte[] payload = Arrays.copyOfRange(data, HEADER_SIZE, data.length);
+		if((data[3] & FLAG_DEFLATE) != 0){
+			payload = deflate.decompress(payload, 0, payload.length);
+		}
+		return new String(payload,CHARSET);
+	}
+}
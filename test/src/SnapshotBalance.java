@@ -0,0 +1,49 @@
+package ctd.net.rpc.balance;
+
+import ctd.net.rpc.Invocation;
+import ctd.net.rpc.desc.support.ProviderSnapshot;
+import ctd.net.rpc.desc.support.ProviderUrl;
+
+/**
+ * index based selection over a {@link ProviderSnapshot},no locks and no allocation per call.
+ * indexes are points on the weight range of the routed group,so weights apply to every subclass.
+ */
+public abstract class SnapshotBalance {
+	static final SnapshotBalance random = new RandomSnapshotBalance();
+	private static final SnapshotBalance roundRobin = new RoundRobinSnapshotBalance();
+	
+	/**
+	 * returns null for balance names without a snapshot implementation,
+	 * those are still created by {@link BalanceFactory}.
+	 * weighted stays there too,routing rule weights are not a replacement for its own weighting.
+	 */
+	public static SnapshotBalance forName(String name,String hashKey){
+		if(name == null || "random".equals(name)){
+			return random;
+		}
+		if("consistentHash".equals(name)){
+			return ConsistentHashSnapshotBalance.forKey(hashKey);
+		}
+		if("roundRobin".equals(name)){
+			return roundRobin;
+		}
+		return null;
+	}
+	
+	public ProviderUrl select(ProviderSnapshot snapshot,Invocation invocation){
+		if(snapshot == null || snapshot.isEmpty()){
+			return null;
+		}
+		ProviderSnapshot.Group group = snapshot.route(invocation.getHeaders());
+		return group.at(index(group.weight()));
+	}
+	
+	/**
+	 * called once the invocation on a selected provider completed,successful or not.
+	 */
+	public void release(ProviderUrl url){
+		
+	}
+	
+	protected abstract int index(int size);
+}
@@ -0,0 +1,83 @@
+package ctd.util.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * a batch of store writes which is committed atomically by a {@link TransactionalStore}.
+ */
+public class StoreTransaction {
+	public enum OperationType {
+		CREATE,CREATE_TEMP,SET_DATA,DELETE
+	}
+	
+	private final List<Operation> operations = new ArrayList<Operation>();
+	
+	public StoreTransaction createPath(String path,byte[] data){
+		operations.add(new Operation(OperationType.CREATE,path,data));
+		return this;
+	}
+	
+	public StoreTransaction createTempPath(String path,byte[] data){
+		operations.add(new Operation(OperationType.CREATE_TEMP,path,data));
+		return this;
+	}
+	
+	public StoreTransaction setData(String path,byte[] data){
+		operations.add(new Operation(OperationType.SET_DATA,path,data));
+		return this;
+	}
+	
+	/**
+	 * deletes a single node,children are not removed.
+	 */
+	public StoreTransaction delete(String path){
+		operations.add(new Operation(OperationType.DELETE,path,null));
+		return this;
+	}
+	
+	/**
+	 * appends the operations of other,which is left unchanged.
+	 */
+	public StoreTransaction append(StoreTransaction other){
+		operations.addAll(other.operations);
+		return this;
+	}
+	
+	public List<Operation> getOperations(){
+		return Collections.unmodifiableList(operations);
+	}
+	
+	public int size(){
+		return operations.size();
+	}
+	
+	public boolean isEmpty(){
+		return operations.isEmpty();
+	}
+	
+	public static class Operation {
+		private final OperationType type;
+		private final String path;
+		private final byte[] data;
+		
+		Operation(OperationType type,String path,byte[] data){
+			this.type = type;
+			this.path = path;
+			this.data = data;
+		}
+
+		public OperationType getType() {
+			return type;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package ctd.util.store.support;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * runs events for the same path in order on one stripe,different paths in parallel.
+ * an event equal to one still waiting in the queue is dropped.
+ */
+public class StripedEventExecutor {
+	private static final Logger logger = LoggerFactory.getLogger(StripedEventExecutor.class);
+	
+	private final ExecutorService[] stripes;
+	private final Set<Object> pending = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+	
+	public StripedEventExecutor(String name,int stripeCount){
+		stripes = new ExecutorService[stripeCount];
+		for(int i = 0; i < stripeCount; i ++){
+			final String threadName = name + "-" + i;
+			stripes[i] = Executors.newSingleThreadExecutor(new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r,threadName);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+	
+	/**
+	 * @param coalesceKey events with equal keys are merged while queued,must include the path.
+	 */
+	public void execute(String path,final Object coalesceKey,final Runnable task){
+		if(!pending.add(coalesceKey)){
+			return;
+		}
+		stripes[(path.hashCode() & Integer.MAX_VALUE) % stripes.length].execute(new Runnable(){
+			@Override
+			public void run() {
+				pending.remove(coalesceKey);
+				try{
+					task.run();
+				}
+				catch(Exception e){
+					logger.error("process store event[" + coalesceKey + "] failed.",e);
+				}
+			}
+		});
+	}
+	
+	public int getPendingCount(){
+		return pending.size();
+	}
+	
+	public void shutdown(){
+		for(ExecutorService stripe : stripes){
+			stripe.shutdown();
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package ctd.util.store;
+
+public interface TransactionalStore {
+	
+	/**
+	 * applies all operations in one round trip,either all of them succeed or none.
+	 */
+	void commit(StoreTransaction transaction) throws StoreException;
+}
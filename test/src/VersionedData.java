@@ -0,0 +1,22 @@
+package ctd.util.store;
+
+/**
+ * node data together with the data version it was read at.
+ */
+public class VersionedData {
+	private final byte[] data;
+	private final int version;
+	
+	public VersionedData(byte[] data,int version){
+		this.data = data;
+		this.version = version;
+	}
+	
+	public byte[] getData(){
+		return data;
+	}
+	
+	public int getVersion(){
+		return version;
+	}
+}
@@ -0,0 +1,21 @@
+package ctd.util.store;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public interface VersionedStore {
+	
+	/**
+	 * the data version of path,it changes on every write of the node data.
+	 */
+	int getDataVersion(String path) throws StoreException;
+	
+	/**
+	 * data and version of path in one read,so the version belongs to exactly that data.
+	 */
+	VersionedData getVersionedData(String path) throws StoreException;
+	
+	/**
+	 * completes with a {@link StoreException} PATH_NOT_EXIST when the path not exist.
+	 */
+	ListenableFuture<Integer> getDataVersionAsync(String path);
+}
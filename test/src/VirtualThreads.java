@@ -0,0 +1,149 @@
+package ctd.util.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ctd.util.context.InvocationContext;
+
+/**
+ * switchable execution mode,-Dctd.rpc.virtualThreads=true runs rpc work on virtual threads
+ * when the runtime has them (java 21+),daemon platform threads otherwise.
+ * looked up reflectively so the code still builds and runs on older runtimes.
+ * the zookeeper client's sync api waits in synchronized(packet),which pins the carrier,
+ * so store work stays on {@link #platformFactory(String)} threads.
+ */
+public final class VirtualThreads {
+	private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+	private static final boolean enabled;
+	private static Method ofVirtual;
+	private static Method builderName;
+	private static Method builderFactory;
+	private static Method isVirtual;
+	private static Method newThreadPerTaskExecutor;
+	
+	static{
+		boolean available = false;
+		try{
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class, long.class);
+			builderFactory = builder.getMethod("factory");
+			isVirtual = Thread.class.getMethod("isVirtual");
+			newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			available = true;
+		}
+		catch(Exception e){
+			
+		}
+		enabled = available && Boolean.getBoolean("ctd.rpc.virtualThreads");
+		if(Boolean.getBoolean("ctd.rpc.virtualThreads") && !available){
+			logger.warn("virtual threads not supported by this runtime,platform threads are used.");
+		}
+	}
+	
+	private VirtualThreads(){
+	}
+	
+	public static boolean isEnabled(){
+		return enabled;
+	}
+	
+	public static boolean isVirtual(Thread t){
+		if(isVirtual == null){
+			return false;
+		}
+		try{
+			return (Boolean)isVirtual.invoke(t);
+		}
+		catch(Exception e){
+			return false;
+		}
+	}
+	
+	/**
+	 * virtual threads in virtual mode,otherwise daemon platform threads,both named prefix + n.
+	 */
+	public static ThreadFactory factory(final String prefix){
+		if(enabled){
+			try{
+				Object builder = builderName.invoke(ofVirtual.invoke(null), prefix, 1L);
+				return (ThreadFactory)builderFactory.invoke(builder);
+			}
+			catch(Exception e){
+				throw new IllegalStateException("create virtual thread factory failed.",e);
+			}
+		}
+		return platformFactory(prefix);
+	}
+	
+	/**
+	 * daemon platform threads named prefix + n in either mode,for work that blocks while pinned.
+	 */
+	public static ThreadFactory platformFactory(final String prefix){
+		return new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r,prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+	
+	/**
+	 * a thread per task in virtual mode,otherwise a cached pool.
+	 */
+	public static ExecutorService newCachedExecutor(String prefix){
+		if(enabled){
+			return newThreadPerTaskExecutor(prefix);
+		}
+		return Executors.newCachedThreadPool(factory(prefix));
+	}
+	
+	/**
+	 * a thread per task in virtual mode,otherwise at most maxThreads platform threads that
+	 * time out when idle,further tasks queue.
+	 */
+	public static ExecutorService newBoundedExecutor(String prefix,int maxThreads){
+		if(enabled){
+			return newThreadPerTaskExecutor(prefix);
+		}
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), factory(prefix));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	private static ExecutorService newThreadPerTaskExecutor(String prefix){
+		try{
+			return (ExecutorService)newThreadPerTaskExecutor.invoke(null, factory(prefix));
+		}
+		catch(Exception e){
+			throw new IllegalStateException("create virtual thread executor failed.",e);
+		}
+	}
+	
+	/**
+	 * carries the invocation context of the submitting thread into the task,
+	 * virtual threads do not inherit thread locals from their creator.
+	 */
+	public static <T> Callable<T> withContext(Callable<T> task){
+		return InvocationContext.capture().wrap(task);
+	}
+	
+	public static Runnable withContext(Runnable task){
+		return InvocationContext.capture().wrap(task);
+	}
+}
@@ -0,0 +1,196 @@
+package ctd.net.rpc.registry.support;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ctd.util.concurrent.VirtualThreads;
+import ctd.util.store.StoreException;
+import ctd.util.store.support.RetryBackoff;
+
+/**
+ * keeps the set of desired store watches and (re)arms them,at once on the calling thread
+ * (a store event stripe,so different paths re-arm in parallel) or on a small pool of arm threads.
+ * batches after a reconnect are spread over that pool instead of one round trip after another,
+ * failed arms are retried there with bounded backoff.
+ * arms block in the store's sync api,so the pool stays on platform threads.
+ */
+public class WatchManager {
+	private static final Logger logger = LoggerFactory.getLogger(WatchManager.class);
+	
+	public interface Watch {
+		void arm() throws StoreException;
+	}
+	
+	private final ConcurrentHashMap<String, Watch> desired = new ConcurrentHashMap<>();
+	private final Set<String> armed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Set<String> scheduled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private static final int ARM_THREADS = Integer.getInteger("ctd.rpc.registry.armThreads", 8);
+	
+	private final RetryBackoff backoff;
+	private final ThreadPoolExecutor armExec;
+	private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r,"ssdev-rpc-registry-watch");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	public WatchManager(RetryBackoff backoff){
+		this.backoff = backoff;
+		this.armExec = new ThreadPoolExecutor(ARM_THREADS, ARM_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), VirtualThreads.platformFactory("ssdev-rpc-registry-arm-"));
+		this.armExec.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * arms at once on the caller thread,a failed arm is retried in background.
+	 * must not be called from the store's own event thread,use {@link #rearmLater(String)} there.
+	 */
+	public void watch(String key,Watch watch){
+		desired.put(key, watch);
+		armed.remove(key);
+		arm(key,0,System.nanoTime());
+	}
+	
+	/**
+	 * the watch on key fired,arm it again on the caller thread.
+	 * for node event listeners,which the store runs on its path striped event threads.
+	 */
+	public void rearm(String key){
+		if(!desired.containsKey(key)){
+			return;
+		}
+		armed.remove(key);
+		if(exec.isShutdown() || !scheduled.add(key)){
+			return;
+		}
+		arm(key,0,System.nanoTime());
+	}
+	
+	/**
+	 * arms the watch again on an arm thread,for callers that must not block
+	 * such as state listeners running on the store's event thread.
+	 */
+	public void rearmLater(String key){
+		if(!desired.containsKey(key)){
+			return;
+		}
+		armed.remove(key);
+		schedule(key,0,System.nanoTime(),0);
+	}
+	
+	public void unwatch(String key){
+		desired.remove(key);
+		armed.remove(key);
+	}
+	
+	/**
+	 * retries every watch that is desired but not armed,in one batch spread over the arm threads.
+	 */
+	public void rearmPending(){
+		long startNanos = System.nanoTime();
+		for(String key : desired.keySet()){
+			if(!armed.contains(key) && scheduled.add(key)){
+				armLater(key,0,startNanos);
+			}
+		}
+	}
+	
+	/**
+	 * arms every desired watch again,for a new store session where all watches are lost.
+	 */
+	public void rearmAll(){
+		armed.clear();
+		rearmPending();
+	}
+	
+	/**
+	 * arms again every desired watch whose key starts with prefix,for a new session of one
+	 * of several stores sharing this manager.
+	 */
+	public void rearmAll(String prefix){
+		for(String key : desired.keySet()){
+			if(key.startsWith(prefix)){
+				armed.remove(key);
+			}
+		}
+		rearmPending();
+	}
+	
+	public int getArmedCount(){
+		return armed.size();
+	}
+	
+	public int getPendingCount(){
+		return Math.max(0, desired.size() - armed.size());
+	}
+	
+	public void shutdown(){
+		exec.shutdownNow();
+		armExec.shutdownNow();
+	}
+	
+	private void schedule(final String key,long delay,final long startNanos,final int attempt){
+		if(exec.isShutdown() || (!scheduled.add(key) && attempt == 0)){
+			return;
+		}
+		if(delay == 0){
+			armLater(key,attempt,startNanos);
+			return;
+		}
+		exec.schedule(new Runnable(){
+			@Override
+			public void run() {
+				armLater(key,attempt,startNanos);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	private void armLater(final String key,final int attempt,final long startNanos){
+		try{
+			armExec.execute(new Runnable(){
+				@Override
+				public void run() {
+					arm(key,attempt,startNanos);
+				}
+			});
+		}
+		catch(RejectedExecutionException e){
+			scheduled.remove(key);
+		}
+	}
+	
+	private void arm(String key,int attempt,long startNanos){
+		scheduled.remove(key);
+		Watch watch = desired.get(key);
+		if(watch == null){
+			return;
+		}
+		try{
+			watch.arm();
+			armed.add(key);
+		}
+		catch(Exception e){
+			long delay = backoff.delayMillis(attempt);
+			if(!backoff.canRetry(startNanos, delay)){
+				logger.error("watch[" + key + "] arm failed,keep pending until reconnected:" + e.getMessage());
+				return;
+			}
+			logger.warn("watch[" + key + "] arm failed,retry in " + delay + "ms:" + e.getMessage());
+			schedule(key,delay,startNanos,attempt + 1);
+		}
+	}
+}
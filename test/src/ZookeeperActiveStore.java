@@ -1,17 +1,29 @@
 package ctd.util.store.support;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
@@ -23,18 +35,43 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import ctd.util.store.AsyncStore;
 import ctd.util.store.StoreException;
+import ctd.util.store.StoreTransaction;
+import ctd.util.store.TransactionalStore;
+import ctd.util.store.VersionedData;
+import ctd.util.store.VersionedStore;
 import ctd.util.store.ActiveStore;
 import ctd.util.store.listener.NodeListener;
 import ctd.util.store.listener.StateListener;
 
-public class ZooKeeperActiveStore implements ActiveStore, Watcher {
+public class ZooKeeperActiveStore implements ActiveStore, AsyncStore, TransactionalStore, VersionedStore, Watcher {
 	private static final Logger logger = LoggerFactory.getLogger(ZooKeeperActiveStore.class);
 	private static final int MAX_RETRYS = 3;
 	private static final int SESSION_TIMEOUT = 10000;
+	private static final int ANY_VERSION = -1;
+	private static final Executor SAME_THREAD = new Executor(){
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
 	private final Lock connectingLock = new ReentrantLock();
 	private final Lock reconnectingLock = new ReentrantLock();
 	private final ExecutorService exec = Executors.newSingleThreadScheduledExecutor();
+	private final ScheduledExecutorService retryExec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r,"ssdev-store-retry");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private final RetryBackoff backoff = new RetryBackoff(200, 5000, 30000);
+	private final StripedEventExecutor eventExec = new StripedEventExecutor("ssdev-store-event", Math.max(4, Runtime.getRuntime().availableProcessors()));
 	private ZooKeeper zk;
 	private String serverAddress;
 	private Set<StateListener> stateListeners = new HashSet<StateListener>();
@@ -89,16 +126,21 @@ public class ZooKeeperActiveStore implements ActiveStore, Watcher {
 		int retryCount = 0;
 		while(true){
 			try {
-				Stat st = zk.exists(path, false);
-				if(st != null){
-					List<String> children = zk.getChildren(path, null);
-					for(String c : children){
-						delete(path + "/" + c);
-					}
-					zk.delete(path, st.getVersion());
+				List<String> children = zk.getChildren(path, null);
+				for(String c : children){
+					delete(path + "/" + c);
 				}
+				zk.delete(path, ANY_VERSION);
+				return;
+			}
+			catch (KeeperException.NoNodeException e) {
 				return;
 			}
+			catch (KeeperException.NotEmptyException e) {//a child was created after listing,list again
+				if(retryCount ++ >= MAX_RETRYS){
+					throw storeExceptionOf(e);
+				}
+			}
 			catch (KeeperException e) {
 				processKeeperException(e,retryCount);
 				retryCount ++;
@@ -119,16 +161,7 @@ public class ZooKeeperActiveStore implements ActiveStore, Watcher {
 		int retryCount = 0;
 		while(true){
 			try {
-				Watcher w = null;
-				if(listener != null){
-					w = new Watcher(){
-						@Override
-						public void process(WatchedEvent event) {
-							ZooKeeperActiveStore.this.processKeeperWatchedEvent(event,listener);
-						}
-					};
-				}
-				Stat st = zk.exists(path, w);
+				Stat st = zk.exists(path, watcherOf(listener));
 				if(st == null){
 					return false;
 				}
@@ -146,6 +179,65 @@ public class ZooKeeperActiveStore implements ActiveStore, Watcher {
 		}
 	}
 
+	@Override
+	public int getDataVersion(String path) throws StoreException {
+		int retryCount = 0;
+		while(true){
+			try {
+				Stat st = zk.exists(path, false);
+				if(st == null){
+					throw new StoreException(StoreException.PATH_NOT_EXIST,"path not exist:" + path);
+				}
+				return st.getVersion();
+			}
+			catch (KeeperException e) {
+				processKeeperException(e,retryCount);
+				retryCount ++;
+			}
+			catch (InterruptedException e) {
+				Thread.interrupted();
+			}
+		}
+	}
+
+	@Override
+	public VersionedData getVersionedData(String path) throws StoreException {
+		int retryCount = 0;
+		while(true){
+			try {
+				Stat st = new Stat();
+				byte[] data = zk.getData(path, false, st);
+				return new VersionedData(data,st.getVersion());
+			}
+			catch (KeeperException e) {
+				processKeeperException(e,retryCount);
+				retryCount ++;
+			}
+			catch (InterruptedException e) {
+				Thread.interrupted();
+			}
+		}
+	}
+	
+	@Override
+	public ListenableFuture<Integer> getDataVersionAsync(final String path){
+		return new AsyncOperation<Integer>(path){
+			@Override
+			void submit() {
+				zk.exists(path, false, new StatCallback(){
+					@Override
+					public void processResult(int rc, String p, Object ctx, Stat stat) {
+						if(Code.get(rc) == Code.OK && stat == null){
+							complete(Code.NONODE.intValue(), null);
+							return;
+						}
+						complete(rc, stat == null ? null : stat.getVersion());
+					}
+				}, null);
+			}
+		}.start();
+	}
+
 	@Override
 	public List<String> getChildren(String path) throws StoreException {
 		return getChildren(path,null);
@@ -157,16 +249,7 @@ public class ZooKeeperActiveStore implements ActiveStore, Watcher {
 		
 		while(true){
 			try {
-				Watcher w = null;
-				if(listener != null){
-					w = new Watcher(){
-						@Override
-						public void process(WatchedEvent event) {
-							ZooKeeperActiveStore.this.processKeeperWatchedEvent(event,listener);
-						}
-					};
-				}
-				return zk.getChildren(path, w);
+				return zk.getChildren(path, watcherOf(listener));
 			}
 			catch (KeeperException e) {
 				processKeeperException(e, retryCount);
@@ -183,10 +266,10 @@ public class ZooKeeperActiveStore implements ActiveStore, Watcher {
 		int retryCount = 0;
 		while(true){
 			try{
-				Stat st = zk.exists(path, null);
-				if(st != null){
-					zk.setData(path, data, st.getVersion());
-				}
+				zk.setData(path, data, ANY_VERSION);
+				return;
+			}
+			catch (KeeperException.NoNodeException e) {
 				return;
 			}
 			catch(KeeperException e){
@@ -209,20 +292,7 @@ public class ZooKeeperActiveStore implements ActiveStore, Watcher {
 		int retryCount = 0;
 		while(true){
 			try{
-				Stat st = zk.exists(path, null);
-				if(st == null){
-					throw new StoreException(StoreException.PATH_NOT_EXIST,"path not exist:" + path);
-				}
-				Watcher w = null;
-				if(listener != null){
-					w = new Watcher(){
-						@Override
-						public void process(WatchedEvent event) {
-							ZooKeeperActiveStore.this.processKeeperWatchedEvent(event,listener);
-						}
-					};
-				}
-				return zk.getData(path, w, st);
+				return zk.getData(path, watcherOf(listener), null);
 			}
 			catch(KeeperException e){
 				processKeeperException(e, retryCount);
@@ -270,6 +340,236 @@ public class ZooKeeperActiveStore implements ActiveStore, Watcher {
 		}
 	}
 
+	@Override
+	public void commit(StoreTransaction transaction) throws StoreException {
+		if(transaction.isEmpty()){
+			return;
+		}
+		List<Op> ops = new ArrayList<Op>(transaction.size());
+		for(StoreTransaction.Operation o : transaction.getOperations()){
+			switch(o.getType()){
+				case CREATE:
+					ops.add(Op.create(o.getPath(), o.getData(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+					break;
+				case CREATE_TEMP:
+					ops.add(Op.create(o.getPath(), o.getData(), Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL));
+					break;
+				case SET_DATA:
+					ops.add(Op.setData(o.getPath(), o.getData(), ANY_VERSION));
+					break;
+				case DELETE:
+					ops.add(Op.delete(o.getPath(), ANY_VERSION));
+					break;
+			}
+		}
+		int retryCount = 0;
+		while(true){
+			try{
+				zk.multi(ops);
+				return;
+			}
+			catch(KeeperException e){
+				processKeeperException(e, retryCount);
+				retryCount ++;
+			}
+			catch (InterruptedException e) {
+				Thread.interrupted();
+			}
+		}
+	}
+	
+	@Override
+	public ListenableFuture<Boolean> isPathExistAsync(final String path,final NodeListener listener){
+		return new AsyncOperation<Boolean>(path){
+			@Override
+			void submit() {
+				zk.exists(path, watcherOf(listener), new StatCallback(){
+					@Override
+					public void processResult(int rc, String p, Object ctx, Stat stat) {
+						if(Code.get(rc) == Code.NONODE){
+							complete(Code.OK.intValue(), false);
+							return;
+						}
+						complete(rc, stat != null);
+					}
+				}, null);
+			}
+		}.start();
+	}
+	
+	@Override
+	public ListenableFuture<List<String>> getChildrenAsync(final String path,final NodeListener listener){
+		return new AsyncOperation<List<String>>(path){
+			@Override
+			void submit() {
+				zk.getChildren(path, watcherOf(listener), new ChildrenCallback(){
+					@Override
+					public void processResult(int rc, String p, Object ctx, List<String> children) {
+						complete(rc, children);
+					}
+				}, null);
+			}
+		}.start();
+	}
+	
+	@Override
+	public ListenableFuture<byte[]> getDataAsync(final String path,final NodeListener listener){
+		return new AsyncOperation<byte[]>(path){
+			@Override
+			void submit() {
+				zk.getData(path, watcherOf(listener), new DataCallback(){
+					@Override
+					public void processResult(int rc, String p, Object ctx, byte[] data, Stat stat) {
+						complete(rc, data);
+					}
+				}, null);
+			}
+		}.start();
+	}
+	
+	/**
+	 * completes with false when the path not exist,the data is not written in that case.
+	 */
+	@Override
+	public ListenableFuture<Boolean> setDataAsync(final String path,final byte[] data){
+		return new AsyncOperation<Boolean>(path){
+			@Override
+			void submit() {
+				zk.setData(path, data, ANY_VERSION, new StatCallback(){
+					@Override
+					public void processResult(int rc, String p, Object ctx, Stat stat) {
+						if(Code.get(rc) == Code.NONODE){
+							complete(Code.OK.intValue(), false);
+							return;
+						}
+						complete(rc, true);
+					}
+				}, null);
+			}
+		}.start();
+	}
+	
+	@Override
+	public ListenableFuture<String> createPathAsync(String path,byte[] data){
+		return createAsync(path,data,CreateMode.PERSISTENT);
+	}
+	
+	@Override
+	public ListenableFuture<String> createTempPathAsync(String path,byte[] data){
+		return createAsync(path,data,CreateMode.EPHEMERAL);
+	}
+	
+	private ListenableFuture<String> createAsync(final String path,final byte[] data,final CreateMode mode){
+		return new AsyncOperation<String>(path){
+			@Override
+			void submit() {
+				zk.create(path, data, Ids.OPEN_ACL_UNSAFE, mode, new StringCallback(){
+					@Override
+					public void processResult(int rc, String p, Object ctx, String name) {
+						complete(rc, name);
+					}
+				}, null);
+			}
+		}.start();
+	}
+	
+	/**
+	 * deletes the path and its children,completes normally when the path not exist.
+	 */
+	@Override
+	public ListenableFuture<Void> deleteAsync(final String path){
+		final SettableFuture<Void> result = SettableFuture.create();
+		final ListenableFuture<List<String>> children = getChildrenAsync(path,null);
+		children.addListener(new Runnable(){
+			@Override
+			public void run() {
+				try{
+					List<String> ls = children.get();
+					if(ls.isEmpty()){
+						forward(deleteNodeAsync(path),result);
+						return;
+					}
+					final AtomicInteger remain = new AtomicInteger(ls.size());
+					for(String c : ls){
+						final ListenableFuture<Void> f = deleteAsync(path + "/" + c);
+						f.addListener(new Runnable(){
+							@Override
+							public void run() {
+								if(failed(f,result)){
+									return;
+								}
+								if(remain.decrementAndGet() == 0){
+									forward(deleteNodeAsync(path),result);
+								}
+							}
+						}, SAME_THREAD);
+					}
+				}
+				catch(Exception e){
+					Throwable cause = e.getCause();
+					if(cause instanceof StoreException && ((StoreException)cause).isPathNotExist()){
+						result.set(null);
+						return;
+					}
+					result.setException(cause == null ? e : cause);
+				}
+			}
+		}, SAME_THREAD);
+		return result;
+	}
+	
+	private ListenableFuture<Void> deleteNodeAsync(final String path){
+		return new AsyncOperation<Void>(path){
+			@Override
+			void submit() {
+				zk.delete(path, ANY_VERSION, new VoidCallback(){
+					@Override
+					public void processResult(int rc, String p, Object ctx) {
+						if(Code.get(rc) == Code.NONODE){
+							complete(Code.OK.intValue(), null);
+							return;
+						}
+						complete(rc, null);
+					}
+				}, null);
+			}
+		}.start();
+	}
+	
+	private static boolean failed(ListenableFuture<?> f,SettableFuture<?> result){
+		try{
+			f.get();
+			return false;
+		}
+		catch(Exception e){
+			result.setException(e.getCause() == null ? e : e.getCause());
+			return true;
+		}
+	}
+	
+	private static void forward(final ListenableFuture<Void> f,final SettableFuture<Void> result){
+		f.addListener(new Runnable(){
+			@Override
+			public void run() {
+				if(!failed(f,result)){
+					result.set(null);
+				}
+			}
+		}, SAME_THREAD);
+	}
+	
+	private Watcher watcherOf(final NodeListener listener){
+		if(listener == null){
+			return null;
+		}
+		return new Watcher(){
+			@Override
+			public void process(WatchedEvent event) {
+				ZooKeeperActiveStore.this.processKeeperWatchedEvent(event,listener);
+			}
+		};
+	}
+	
 	@Override
 	public void process(WatchedEvent event) {
 		onStateChange(event);
@@ -318,63 +618,94 @@ public class ZooKeeperActiveStore implements ActiveStore, Watcher {
 			
 		}
 		else{
-			EventType type = event.getType();
-			try{
-				switch(type){
-					case NodeDeleted:
-						listener.onDeleted(path);
-						break;
-					case NodeCreated:
-						listener.onCreated(path);
-						break;
-					case NodeDataChanged:
-						listener.onDataChanged(path);
-						break;
-					case NodeChildrenChanged:
-						listener.onChildrenChanged(path);
-						break;
-					case None:
-					default:
-						break;
-				}
-			}
-			catch(Exception e){
-				throw new IllegalStateException(e);
+			final EventType type = event.getType();
+			if(type == EventType.None){
+				return;
 			}
+			eventExec.execute(path, Arrays.asList(path,type,listener), new Runnable(){
+				@Override
+				public void run() {
+					dispatchNodeEvent(type,event.getPath(),listener);
+				}
+			});
 		}//else
 		
 	}
 	
+	private void dispatchNodeEvent(EventType type,String path,NodeListener listener){
+		try{
+			switch(type){
+				case NodeDeleted:
+					listener.onDeleted(path);
+					break;
+				case NodeCreated:
+					listener.onCreated(path);
+					break;
+				case NodeDataChanged:
+					listener.onDataChanged(path);
+					break;
+				case NodeChildrenChanged:
+					listener.onChildrenChanged(path);
+					break;
+				case None:
+				default:
+					break;
+			}
+		}
+		catch(Exception e){
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * sync calls never sleep here.session expiry and connection loss fail on the first attempt,
+	 * retrying at once on a dead or disconnected handle cannot succeed.
+	 * only a server side operation timeout returns to be retried,every other code is permanent.
+	 * waiting retries with backoff belong to the async api.
+	 */
 	private void processKeeperException(KeeperException e,int retryCount) throws StoreException{
 		
 		if(retryCount > MAX_RETRYS){
 			throw new StoreException(StoreException.RETRY_TIMES_EXCEED,e.getMessage());
 		}
-		else{
-			if(e.code() == Code.SESSIONEXPIRED){
-				reconnect();
-				return;
-			}
-			if(e.code() == Code.CONNECTIONLOSS){
+		switch(e.code()){
+			case SESSIONEXPIRED:
+				reconnectAsync();
+				throw new StoreException(StoreException.RETRY_TIMES_EXCEED,"session expired,not retried:" + e.getMessage());
+			case CONNECTIONLOSS:
 				fireDisconnectedEvent();
+				throw new StoreException(StoreException.RETRY_TIMES_EXCEED,"connection loss,not retried:" + e.getMessage());
+			case OPERATIONTIMEOUT:
 				return;
-			}
-			
-			if(e.code() == Code.NONODE){
-				throw new StoreException(StoreException.PATH_NOT_EXIST,e.getMessage());
-			}
-			if(e.code() == Code.NODEEXISTS){
-				throw new StoreException(StoreException.PATH_EXIST,e.getMessage());
-			}
-			try {
-				TimeUnit.SECONDS.sleep(3*retryCount);
-			} 
-			catch (InterruptedException e1) {
-				Thread.currentThread().interrupt();
-			}
+			default:
+				throw storeExceptionOf(e);
 		}
 	}
 	
+	private static boolean isTransient(Code code){
+		return code == Code.CONNECTIONLOSS || code == Code.OPERATIONTIMEOUT || code == Code.SESSIONEXPIRED;
+	}
+	
+	private static StoreException storeExceptionOf(KeeperException e){
+		switch(e.code()){
+			case NONODE:
+				return new StoreException(StoreException.PATH_NOT_EXIST,e.getMessage());
+			case NODEEXISTS:
+				return new StoreException(StoreException.PATH_EXIST,e.getMessage());
+			default:
+				return new StoreException(StoreException.RETRY_TIMES_EXCEED,"not retried:" + e.getMessage());
+		}
+	}
+	
+	private void reconnectAsync(){
+		exec.execute(new Runnable(){
+			@Override
+			public void run() {
+				reconnect();
+			}
+		});
+	}
+	
 	private void reconnect(){
 		reconnectingLock.lock();
 		try{
@@ -433,6 +764,8 @@ public class ZooKeeperActiveStore implements ActiveStore, Watcher {
 			connectingLock.lockInterruptibly();
 			zk.close();
 			exec.shutdown();
+			retryExec.shutdown();
+			eventExec.shutdown();
 		} 
 		catch (InterruptedException e) {
 			Thread.interrupted();
@@ -443,5 +776,72 @@ public class ZooKeeperActiveStore implements ActiveStore, Watcher {
 		}
 		
 	}
+	
+	/**
+	 * one zookeeper async call,retried with jittered backoff on retryExec until the deadline
+	 * while the failure is transient,other codes fail at once.
+	 * callbacks complete on the zookeeper event thread.
+	 */
+	private abstract class AsyncOperation<T> {
+		protected final String path;
+		private final SettableFuture<T> future = SettableFuture.create();
+		private final long startNanos = System.nanoTime();
+		private int retryCount;
+		
+		AsyncOperation(String path){
+			this.path = path;
+		}
+		
+		abstract void submit();
+		
+		ListenableFuture<T> start(){
+			submit();
+			return future;
+		}
+		
+		void complete(int rc,T value){
+			Code code = Code.get(rc);
+			switch(code){
+				case OK:
+					future.set(value);
+					return;
+				case NONODE:
+					future.setException(new StoreException(StoreException.PATH_NOT_EXIST,"path not exist:" + path));
+					return;
+				case NODEEXISTS:
+					future.setException(new StoreException(StoreException.PATH_EXIST,"path exist:" + path));
+					return;
+				default:
+					break;
+			}
+			if(!isTransient(code)){
+				future.setException(storeExceptionOf(KeeperException.create(code, path)));
+				return;
+			}
+			if(future.isCancelled()){
+				return;
+			}
+			long delay = backoff.delayMillis(retryCount);
+			if(!backoff.canRetry(startNanos, delay) || retryExec.isShutdown()){
+				future.setException(new StoreException(StoreException.RETRY_TIMES_EXCEED,KeeperException.create(code, path).getMessage()));
+				return;
+			}
+			retryCount ++;
+			if(code == Code.SESSIONEXPIRED){
+				reconnectAsync();
+			}
+			else if(code == Code.CONNECTIONLOSS){
+				fireDisconnectedEvent();
+			}
+			retryExec.schedule(new Runnable(){
+				@Override
+				public void run() {
+					if(!future.isCancelled()){
+						submit();
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
 
 }